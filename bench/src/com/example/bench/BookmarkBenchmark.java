@@ -0,0 +1,80 @@
+package com.example.bench;
+
+import com.example.BookmarkStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a {@link BookmarkStore} holding many bookmarks: loading its log,
+ * adding and deleting a bookmark, which appends two lines and now and then
+ * compacts, and looking one up. The log lives in a temporary directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookmarkBenchmark {
+	@Param({ "10000", "50000" })
+	public int bookmarks;
+
+	private File dir;
+	private File file;
+	private BookmarkStore store;
+	private String middle;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = File.createTempFile("bookmarks", "");
+		dir.delete();
+		dir.mkdir();
+		file = new File(dir, "bookmarks.log");
+		store = new BookmarkStore(file);
+		for (int i = 0; i < bookmarks; i++) {
+			store.add("https://www.example.com/articles/" + i + "/a-fairly-typical-slug");
+		}
+		middle = "https://www.example.com/articles/" + bookmarks / 2 + "/a-fairly-typical-slug";
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		new File(file.getPath() + ".tmp").delete();
+		file.delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public int load() throws IOException {
+		BookmarkStore loaded = new BookmarkStore(file);
+		loaded.load();
+		return loaded.size();
+	}
+
+	@Benchmark
+	public boolean addAndRemove() throws IOException {
+		store.add("https://www.example.com/new");
+		return store.remove("https://www.example.com/new");
+	}
+
+	@Benchmark
+	public boolean contains() {
+		return store.contains(middle);
+	}
+}
@@ -0,0 +1,144 @@
+package com.example.bench;
+
+import com.example.CommandEncoder;
+import com.example.CommandQueue;
+import com.example.RemoteCommand;
+import com.example.RemoteValues;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long a click waits between being offered to the
+ * {@link CommandQueue} and leaving the sender, over a stream that is as
+ * slow as an RFCOMM link: every write costs a fixed overhead plus a time
+ * per byte. Meanwhile another thread keeps offering input, so the click
+ * competes with a drag, with typing, or with nothing. The sender loop is
+ * the service's: take what is ready, batch it, write it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClickLatencyBenchmark {
+	// Cost of one write on the simulated link
+	static final long WRITE_NANOS = 2000000;
+	// About 50 KB/s, a typical RFCOMM throughput
+	static final long NANOS_PER_BYTE = 20000;
+	// Period of the background input, like a touch screen's samples
+	static final long INPUT_PERIOD_NANOS = 4000000;
+
+	/** What the other thread offers while clicks are measured */
+	@Param({ "idle", "drag", "typing" })
+	public String load;
+
+	/** A stream that takes as long as the link would to write. */
+	private static final class SlowStream extends OutputStream {
+		public void write(int b) {
+			LockSupport.parkNanos(WRITE_NANOS + NANOS_PER_BYTE);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			LockSupport.parkNanos(WRITE_NANOS + len * NANOS_PER_BYTE);
+		}
+	}
+
+	private final CommandQueue queue = new CommandQueue();
+	// Clicks the sender has written so far
+	private volatile long clicksWritten = 0;
+	private volatile boolean running;
+	private Thread sender;
+	private Thread input;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		running = true;
+		sender = new Thread("sender") {
+			public void run() {
+				send(new SlowStream());
+			}
+		};
+		sender.start();
+		if (!load.equals("idle")) {
+			input = new Thread("input") {
+				public void run() {
+					int i = 0;
+					while (running) {
+						if (load.equals("drag")) {
+							queue.offer(RemoteValues.MOVE_MOUSE_BY, 3, -2, null);
+						} else {
+							queue.offer(RemoteValues.TYPE, 0, 0, (i++ % 5 == 4) ? " " : "w");
+						}
+						LockSupport.parkNanos(INPUT_PERIOD_NANOS);
+					}
+				}
+			};
+			input.start();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		running = false;
+		queue.close();
+		sender.join();
+		if (input != null) {
+			input.join();
+		}
+	}
+
+	private void send(OutputStream out) {
+		CommandEncoder encoder = new CommandEncoder();
+		encoder.setBatchLimits(CommandEncoder.MAX_BATCH_BYTES, 0);
+		RemoteCommand command = new RemoteCommand();
+		StringBuilder text = new StringBuilder();
+		try {
+			while (running) {
+				if (!queue.take(command, text, 100)) {
+					continue;
+				}
+				int clicks = 0;
+				do {
+					if (command.command == RemoteValues.MOUSE_LEFT) {
+						clicks++;
+					}
+					encoder.put(command.command, command.parameter1, command.parameter2, text);
+				} while (!encoder.isBatchFull() && queue.take(command, text, 0));
+				encoder.writeTo(out);
+				clicksWritten += clicks;
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Benchmark
+	public long click() {
+		long target = clicksWritten + 1;
+		queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null);
+		while (clicksWritten < target) {
+			LockSupport.parkNanos(10000);
+		}
+		return target;
+	}
+}
@@ -0,0 +1,136 @@
+package com.example.bench;
+
+import com.example.CommandEncoder;
+import com.example.FrameDecoder;
+import com.example.RemoteCommand;
+import com.example.RemoteCommandCodec;
+import com.example.RemoteValues;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes and decodes one command of each opcode. TEXT_CHUNK_DEFLATE and
+ * BATCH are only written by {@link CommandEncoder}, so they go through it:
+ * a chunk of prose that deflate shortens, and a move, click, keystroke and
+ * ENTER batched together, which decode as four commands.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({ "MOVE_MOUSE_BY", "MOUSE_SCROLL", "MOUSE_SCROLL_PRECISE", "MOUSE_LEFT",
+			"MOUSE_RIGHT", "ENTER", "TAB", "BACKSPACE", "DELETE_CHARS", "NEW_TAB", "TYPE",
+			"TEXT_CHUNK", "TEXT_CHUNK_DEFLATE", "TEXT_CHUNK_ACK", "CHECK_CONNECTION",
+			"CHECK_CONNECTION_REPLY", "SYNC", "SYNC_ACK", "BATCH" })
+	public String opcode;
+
+	private static final String CHUNK = "It was the best of times, it was the worst of times, it was "
+			+ "the age of wisdom, it was the age of foolishness, it was the epoch of belief, it was "
+			+ "the epoch of incredulity, it was the season of Light, it was the season of Darkness, "
+			+ "it was the spring of hope, it was the winter";
+
+	/** Discards what is written to it, keeping only a count. */
+	private static final class CountingStream extends OutputStream {
+		int written;
+
+		public void write(int b) {
+			written++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			written += len;
+		}
+	}
+
+	private RemoteCommand command;
+	// Used for the opcodes only CommandEncoder writes
+	private final CommandEncoder encoder = new CommandEncoder();
+	private final CountingStream sink = new CountingStream();
+	private byte[] buffer = new byte[1024];
+	private byte[] encoded;
+	private final FrameDecoder decoder = new FrameDecoder();
+	private final RemoteCommand decoded = new RemoteCommand();
+
+	@Setup
+	public void setUp() throws Exception {
+		command = new RemoteCommand();
+		command.command = RemoteValues.class.getField(opcode).getInt(null);
+		command.parameter1 = 12;
+		command.parameter2 = -7;
+		if (command.command == RemoteValues.TYPE || command.command == RemoteValues.TEXT_CHUNK) {
+			command.string1 = "http://www.example.com/";
+		}
+		if (command.command == RemoteValues.TEXT_CHUNK_DEFLATE) {
+			command.parameter2 = 7;
+			command.string1 = CHUNK;
+			encoder.setCompressText(true);
+		} else if (command.command == RemoteValues.BATCH) {
+			encoder.setBatchLimits(CommandEncoder.MAX_BATCH_BYTES, 0);
+		}
+		if (isEncoderOnly()) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			putThroughEncoder();
+			encoder.writeTo(bytes);
+			encoded = bytes.toByteArray();
+		} else {
+			encoded = command.getByteArray();
+		}
+	}
+
+	private boolean isEncoderOnly() {
+		return command.command == RemoteValues.TEXT_CHUNK_DEFLATE
+				|| command.command == RemoteValues.BATCH;
+	}
+
+	private void putThroughEncoder() {
+		if (command.command == RemoteValues.TEXT_CHUNK_DEFLATE) {
+			encoder.put(RemoteValues.TEXT_CHUNK, command.parameter1, command.parameter2, command.string1);
+		} else {
+			encoder.put(RemoteValues.MOVE_MOUSE_BY, command.parameter1, command.parameter2, null);
+			encoder.put(RemoteValues.MOUSE_LEFT, 0, 0, null);
+			encoder.put(RemoteValues.TYPE, 0, 0, "w");
+			encoder.put(RemoteValues.ENTER, 0, 0, null);
+		}
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		if (isEncoderOnly()) {
+			putThroughEncoder();
+			encoder.writeTo(sink);
+			return sink.written;
+		}
+		return RemoteCommandCodec.encode(command.command, command.parameter1,
+				command.parameter2, command.string1, buffer, 0);
+	}
+
+	@Benchmark
+	public int decode() throws StreamCorruptedException {
+		decoder.feed(encoded, 0, encoded.length);
+		int sum = 0;
+		while (decoder.next()) {
+			decoder.read(decoded);
+			sum += decoded.parameter1;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,117 @@
+package com.example.bench;
+
+import com.example.CommandEncoder;
+import com.example.FrameDecoder;
+import com.example.RemoteCommand;
+import com.example.RemoteValues;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decodes a session's worth of batched frames fed to a {@link FrameDecoder}
+ * in pieces cut at random boundaries, as reads from a socket deliver them.
+ * Small pieces keep the decoder waiting on partial frames and compacting
+ * its buffer; large ones measure parsing alone. The session is 2000
+ * bursts of drags, scrolls, clicks, typed words and pasted chunks,
+ * encoded as the sender batches them. The score is time per session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentedDecodeBenchmark {
+	/** The longest piece; pieces are 1 to this many bytes long */
+	@Param({ "1", "16", "300", "4096" })
+	public int maxPiece;
+
+	private byte[] stream;
+	// Length of each piece, in stream order
+	private int[] pieces;
+	private final FrameDecoder decoder = new FrameDecoder();
+	private final RemoteCommand command = new RemoteCommand();
+
+	@Setup
+	public void setUp() throws Exception {
+		stream = session();
+		Random random = new Random(7);
+		int[] lengths = new int[stream.length];
+		int count = 0;
+		for (int position = 0; position < stream.length; count++) {
+			lengths[count] = Math.min(stream.length - position, 1 + random.nextInt(maxPiece));
+			position += lengths[count];
+		}
+		pieces = new int[count];
+		System.arraycopy(lengths, 0, pieces, 0, count);
+	}
+
+	/**
+	 * Encodes the session with the sender's batch limit, writing when a
+	 * batch fills up and after every other burst or so, as the sender
+	 * would when it catches up with the input.
+	 */
+	static byte[] session() throws Exception {
+		Random random = new Random(42);
+		CommandEncoder encoder = new CommandEncoder();
+		encoder.setBatchLimits(CommandEncoder.MAX_BATCH_BYTES, 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StringBuilder paste = new StringBuilder();
+		for (int i = 0; i < 256; i++) {
+			paste.append((char) ('a' + random.nextInt(26)));
+		}
+		for (int burst = 0; burst < 2000; burst++) {
+			int kind = random.nextInt(20);
+			if (kind < 12) {
+				for (int i = 0; i < 4; i++) {
+					encoder.put(RemoteValues.MOVE_MOUSE_BY, random.nextInt(41) - 20,
+							random.nextInt(41) - 20, null);
+				}
+			} else if (kind < 15) {
+				encoder.put(RemoteValues.MOUSE_SCROLL_PRECISE, random.nextInt(241) - 120, 0, null);
+			} else if (kind < 17) {
+				encoder.put(RemoteValues.MOUSE_LEFT, 0, 0, null);
+			} else if (kind < 19) {
+				encoder.put(RemoteValues.TYPE, 0, 0, "word" + burst);
+				encoder.put(RemoteValues.ENTER, 0, 0, null);
+			} else {
+				encoder.put(RemoteValues.TEXT_CHUNK, 1, burst, paste);
+			}
+			if (encoder.isBatchFull() || random.nextBoolean()) {
+				encoder.writeTo(out);
+			}
+		}
+		encoder.writeTo(out);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public int decodeSession() throws StreamCorruptedException {
+		int frames = 0;
+		int position = 0;
+		for (int i = 0; i < pieces.length; i++) {
+			decoder.feed(stream, position, pieces[i]);
+			position += pieces[i];
+			while (decoder.next()) {
+				decoder.read(command);
+				frames++;
+			}
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,93 @@
+package com.example.bench;
+
+import com.example.AccelerationCurve;
+import com.example.GestureEngine;
+import com.example.SendRateController;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Feeds synthetic touch streams through {@link GestureEngine}, the
+ * platform-independent core of handleTouch and handleMultiTouch. Each
+ * stream is one gesture of {@link #SAMPLES} samples at 240 Hz; the score
+ * is the time per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GestureBenchmark {
+	static final int SAMPLES = 1000;
+	private static final long SAMPLE_INTERVAL = 4; // ms
+
+	private final float[] xs = new float[SAMPLES];
+	private final float[] ys = new float[SAMPLES];
+	private GestureEngine engine;
+	private long time = 0;
+
+	@Setup
+	public void setUp(final Blackhole blackhole) {
+		for (int i = 0; i < SAMPLES; i++) {
+			// A looping drag with varying speed
+			double t = i * 0.02;
+			xs[i] = (float) (300 + 200 * Math.sin(t) + 0.3 * i);
+			ys[i] = (float) (500 + 150 * Math.cos(1.3 * t));
+		}
+		engine = new GestureEngine(new GestureEngine.Listener() {
+			public void onCommand(int command, int parameter1, int parameter2) {
+				blackhole.consume(parameter1 + parameter2);
+			}
+		}, new SendRateController());
+		engine.setAccelerationCurve(AccelerationCurve.DEFAULT);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public void singleFingerDrag() {
+		engine.setPredictionHorizon(0);
+		play(1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public void singleFingerDragPredicted() {
+		engine.setPredictionHorizon(30);
+		play(1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public void twoFingerScroll() {
+		engine.setPredictionHorizon(0);
+		play(2);
+	}
+
+	private void play(int pointers) {
+		int down = pointers == 1 ? GestureEngine.ACTION_DOWN : GestureEngine.ACTION_POINTER_DOWN;
+		int up = pointers == 1 ? GestureEngine.ACTION_UP : GestureEngine.ACTION_POINTER_UP;
+		engine.onSample(pointers, down, xs[0], ys[0], time);
+		for (int i = 1; i < SAMPLES - 1; i++) {
+			time += SAMPLE_INTERVAL;
+			engine.onSample(pointers, GestureEngine.ACTION_MOVE, xs[i], ys[i], time);
+		}
+		time += SAMPLE_INTERVAL;
+		engine.onSample(pointers, up, xs[SAMPLES - 1], ys[SAMPLES - 1], time);
+		// Let any tap or fling timing start afresh
+		time += 1000;
+	}
+}
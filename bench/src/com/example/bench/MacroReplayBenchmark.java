@@ -0,0 +1,154 @@
+package com.example.bench;
+
+import com.example.CommandEncoder;
+import com.example.CommandQueue;
+import com.example.CompiledMacro;
+import com.example.Macro;
+import com.example.MacroRunner;
+import com.example.RemoteCommand;
+import com.example.RemoteValues;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long a form fill takes to leave the sender over a link as
+ * slow as RFCOMM, from the first call until its ENTER is written: played
+ * as a compiled macro, whose frames are queued as one unit, against the
+ * same commands offered one by one as the service's handleKey and
+ * handleText calls do. One by one, the sender wakes for the first command
+ * and writes it alone while the rest pile up behind it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroReplayBenchmark {
+	// Cost of one write on the simulated link, as in ClickLatencyBenchmark
+	static final long WRITE_NANOS = 2000000;
+	static final long NANOS_PER_BYTE = 20000;
+
+	private static final String[] FIELDS = { "Ada Lovelace", "ada@example.com", "London", "Analytical engines" };
+
+	/** A stream that takes as long as the link would to write. */
+	private static final class SlowStream extends OutputStream {
+		public void write(int b) {
+			LockSupport.parkNanos(WRITE_NANOS + NANOS_PER_BYTE);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			LockSupport.parkNanos(WRITE_NANOS + len * NANOS_PER_BYTE);
+		}
+	}
+
+	private final CommandQueue queue = new CommandQueue();
+	// Form fills the sender has finished writing
+	private volatile long formsWritten = 0;
+	private volatile boolean running;
+	private Thread sender;
+	private MacroRunner runner;
+	private CompiledMacro form;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Macro macro = new Macro();
+		for (int i = 0; i < FIELDS.length; i++) {
+			macro.type(FIELDS[i]).key(i < FIELDS.length - 1 ? RemoteValues.TAB : RemoteValues.ENTER);
+		}
+		form = macro.compile();
+		runner = new MacroRunner(new MacroRunner.Writer() {
+			public boolean write(byte[] frames, int syncToken) {
+				return frames.length == 0 || queue.offerFrames(frames);
+			}
+		}, null);
+		running = true;
+		sender = new Thread("sender") {
+			public void run() {
+				send(new SlowStream());
+			}
+		};
+		sender.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		running = false;
+		runner.shutdown();
+		queue.close();
+		sender.join();
+	}
+
+	/** The service's sender loop; a form is done once its last frame is written. */
+	private void send(OutputStream out) {
+		CommandEncoder encoder = new CommandEncoder();
+		encoder.setBatchLimits(CommandEncoder.MAX_BATCH_BYTES, 0);
+		RemoteCommand command = new RemoteCommand();
+		StringBuilder text = new StringBuilder();
+		try {
+			while (running) {
+				if (!queue.take(command, text, 100)) {
+					continue;
+				}
+				int forms = 0;
+				do {
+					if (command.command == CommandQueue.ENCODED_FRAMES) {
+						encoder.putFrames(queue.getTakenFrames(), 0, command.parameter1);
+						forms++;
+					} else {
+						if (command.command == RemoteValues.ENTER) {
+							forms++;
+						}
+						encoder.put(command.command, command.parameter1, command.parameter2, text);
+					}
+				} while (!encoder.isBatchFull() && queue.take(command, text, 0));
+				encoder.writeTo(out);
+				formsWritten += forms;
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private long await(long target) {
+		while (formsWritten < target) {
+			LockSupport.parkNanos(10000);
+		}
+		return target;
+	}
+
+	@Benchmark
+	public long macro() {
+		long target = formsWritten + 1;
+		runner.start(form);
+		return await(target);
+	}
+
+	@Benchmark
+	public long oneByOne() {
+		long target = formsWritten + 1;
+		for (int i = 0; i < FIELDS.length; i++) {
+			queue.offer(RemoteValues.TYPE, 0, 0, FIELDS[i]);
+			queue.offer(i < FIELDS.length - 1 ? RemoteValues.TAB : RemoteValues.ENTER, 0, 0, null);
+		}
+		return await(target);
+	}
+}
@@ -0,0 +1,177 @@
+package com.example.bench;
+
+import com.example.CommandEncoder;
+import com.example.CommandQueue;
+import com.example.RemoteCommand;
+import com.example.RemoteValues;
+import com.example.transport.LoopbackTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures write throughput of the sending side: commands are offered to
+ * a {@link CommandQueue}, taken off and batch-encoded as the sender thread
+ * does, and written either to a stream that discards them or through a
+ * {@link LoopbackTransport} drained by another thread. The unbatched
+ * baseline writes and flushes every command on its own, as the app did
+ * before batching. The score is commands per microsecond; the writes
+ * counter totals the stream writes, and so socket system calls, made in
+ * each iteration, which divided by the commands sent gives writes per
+ * command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+	static final int COMMANDS = 64;
+
+	@Param({ "discard", "loopback" })
+	public String sink;
+
+	@Param({ "batched", "unbatched" })
+	public String batching;
+
+	/** Stream writes made, reported next to the score. */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Writes {
+		public long writes;
+	}
+
+	private final CommandQueue queue = new CommandQueue();
+	private final CommandEncoder encoder = new CommandEncoder();
+	private final RemoteCommand command = new RemoteCommand();
+	private final StringBuilder text = new StringBuilder();
+	private LoopbackTransport transport;
+	private OutputStream out;
+	private Thread drain;
+	private boolean batched;
+	private long writeCount = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		batched = batching.equals("batched");
+		if (batched) {
+			encoder.setBatchLimits(CommandEncoder.MAX_BATCH_BYTES, 0);
+		}
+		final OutputStream stream;
+		if (sink.equals("loopback")) {
+			transport = new LoopbackTransport("bench");
+			transport.connect();
+			stream = transport.getOutputStream();
+			final InputStream in = transport.getPeer().getInputStream();
+			drain = new Thread("drain") {
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						while (in.read(buffer) != -1) {
+							// discard
+						}
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			};
+			drain.setDaemon(true);
+			drain.start();
+		} else {
+			stream = new OutputStream() {
+				public void write(int b) {
+				}
+
+				public void write(byte[] b, int off, int len) {
+				}
+			};
+		}
+		out = new OutputStream() {
+			public void write(int b) throws IOException {
+				writeCount++;
+				stream.write(b);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (len > 0) {
+					writeCount++;
+					stream.write(b, off, len);
+				}
+			}
+
+			public void flush() throws IOException {
+				stream.flush();
+			}
+		};
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if (transport != null) {
+			transport.close();
+		}
+	}
+
+	/**
+	 * A typical mix: mostly moves, which coalesce, with clicks, keys and
+	 * short text in between.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(COMMANDS)
+	public void mixedInput(Writes writes) throws Exception {
+		long before = writeCount;
+		for (int i = 0; i < COMMANDS; i++) {
+			switch (i % 8) {
+			case 3:
+				queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null);
+				break;
+			case 5:
+				queue.offer(RemoteValues.TYPE, 0, 0, "hello");
+				break;
+			case 7:
+				queue.offer(RemoteValues.ENTER, 0, 0, null);
+				break;
+			default:
+				queue.offer(RemoteValues.MOVE_MOUSE_BY, i, -i, null);
+			}
+			if (i % 16 == 15) {
+				send();
+			}
+		}
+		send();
+		writes.writes += writeCount - before;
+	}
+
+	private void send() throws Exception {
+		while (queue.take(command, text, 0)) {
+			encoder.put(command.command, command.parameter1, command.parameter2, text);
+			if (encoder.isBatchFull()) {
+				encoder.writeTo(out);
+			} else if (!batched) {
+				encoder.writeTo(out);
+				out.flush();
+			}
+		}
+		encoder.writeTo(out);
+		out.flush();
+	}
+}
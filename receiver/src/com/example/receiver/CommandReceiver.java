@@ -0,0 +1,135 @@
+package com.example.receiver;
+
+import com.example.CommandEncoder;
+import com.example.FrameDecoder;
+import com.example.RemoteCommand;
+import com.example.RemoteValues;
+import com.example.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The PC side of a connection. Decodes the frames the phone sends over a
+ * {@link Transport}, answers CHECK_CONNECTION probes so the phone can
+ * measure round-trip time, and hands every other command to an
+ * {@link InputSink}. Chunks of a bulk text transfer are typed like TYPE
+ * and acknowledged once the sink has taken them, which is what lets the
+ * phone send the next one. A SYNC is answered with a SYNC_ACK once the
+ * sink has performed it, and so everything before it.
+ */
+public class CommandReceiver implements Runnable {
+	private final Transport transport;
+	private final InputSink sink;
+	private final CommandEncoder encoder = new CommandEncoder();
+	private volatile boolean running = true;
+	private volatile IOException failure;
+
+	public CommandReceiver(Transport transport, InputSink sink) {
+		this.transport = transport;
+		this.sink = sink;
+	}
+
+	/**
+	 * Receives until the phone disconnects or {@link #stop()} is called.
+	 * Any I/O error that ends the session early is available from
+	 * {@link #getFailure()}.
+	 */
+	public void run() {
+		FrameDecoder decoder = new FrameDecoder();
+		RemoteCommand command = new RemoteCommand();
+		try {
+			InputStream in = transport.getInputStream();
+			OutputStream out = transport.getOutputStream();
+			while (running && decoder.fill(in) != -1) {
+				while (decoder.next()) {
+					decoder.read(command);
+					if (command.command == RemoteValues.CHECK_CONNECTION) {
+						encoder.put(RemoteValues.CHECK_CONNECTION_REPLY,
+								command.parameter1, command.parameter2, null);
+						encoder.writeTo(out);
+						out.flush();
+					} else if (command.command == RemoteValues.TEXT_CHUNK
+							|| command.command == RemoteValues.TEXT_CHUNK_DEFLATE) {
+						// The parameters, transfer and sequence, pass through to the ack
+						command.command = RemoteValues.TYPE;
+						sink.execute(command);
+						encoder.put(RemoteValues.TEXT_CHUNK_ACK,
+								command.parameter1, command.parameter2, null);
+						encoder.writeTo(out);
+						out.flush();
+					} else if (command.command == RemoteValues.SYNC) {
+						sink.execute(command);
+						encoder.put(RemoteValues.SYNC_ACK, command.parameter1, 0, null);
+						encoder.writeTo(out);
+						out.flush();
+					} else {
+						sink.execute(command);
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				failure = e;
+			}
+		} finally {
+			try {
+				transport.close();
+			} catch (IOException e) {
+				// Already closing
+			}
+		}
+	}
+
+	/**
+	 * Ends the session and closes the transport.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			transport.close();
+		} catch (IOException e) {
+			// Already closing
+		}
+	}
+
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns a one line description of a command, for logs.
+	 */
+	public static String describe(RemoteCommand command) {
+		switch (command.command) {
+		case RemoteValues.MOVE_MOUSE_BY:
+			return "MOVE_MOUSE_BY " + command.parameter1 + "," + command.parameter2;
+		case RemoteValues.MOUSE_SCROLL:
+			return "MOUSE_SCROLL " + command.parameter1;
+		case RemoteValues.MOUSE_SCROLL_PRECISE:
+			return "MOUSE_SCROLL_PRECISE " + command.parameter1 + "/"
+					+ RemoteValues.SCROLL_UNITS_PER_NOTCH;
+		case RemoteValues.MOUSE_LEFT:
+			return "MOUSE_LEFT";
+		case RemoteValues.MOUSE_RIGHT:
+			return "MOUSE_RIGHT";
+		case RemoteValues.TYPE:
+			return "TYPE \"" + command.string1 + "\"";
+		case RemoteValues.ENTER:
+			return "ENTER";
+		case RemoteValues.TAB:
+			return "TAB";
+		case RemoteValues.BACKSPACE:
+			return "BACKSPACE";
+		case RemoteValues.DELETE_CHARS:
+			return "DELETE_CHARS " + command.parameter1;
+		case RemoteValues.NEW_TAB:
+			return "NEW_TAB";
+		case RemoteValues.SYNC:
+			return "SYNC " + command.parameter1;
+		default:
+			return "command " + command.command;
+		}
+	}
+}
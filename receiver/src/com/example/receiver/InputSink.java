@@ -0,0 +1,18 @@
+package com.example.receiver;
+
+import com.example.RemoteCommand;
+
+/**
+ * Receives decoded commands from a {@link CommandReceiver} and turns them
+ * into input on the PC, or records them for a test.
+ *
+ * The command object is reused by the receiver for the next frame, so
+ * implementations must copy anything they keep.
+ */
+public interface InputSink {
+	/**
+	 * Performs one command. Called on the receiver's thread, in the order
+	 * the commands were sent.
+	 */
+	void execute(RemoteCommand command);
+}
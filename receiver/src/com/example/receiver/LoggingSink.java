@@ -0,0 +1,20 @@
+package com.example.receiver;
+
+import com.example.RemoteCommand;
+
+import java.io.PrintStream;
+
+/**
+ * Prints each command, for running the receiver without a display.
+ */
+public class LoggingSink implements InputSink {
+	private final PrintStream out;
+
+	public LoggingSink(PrintStream out) {
+		this.out = out;
+	}
+
+	public void execute(RemoteCommand command) {
+		out.println(CommandReceiver.describe(command));
+	}
+}
@@ -0,0 +1,47 @@
+package com.example.receiver;
+
+import com.example.transport.TcpTransport;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Runs a receiver that accepts phone connections over TCP, one at a time.
+ *
+ * <pre>
+ *   java com.example.receiver.ReceiverMain [port] [robot|log]
+ * </pre>
+ *
+ * The default sink is "log", which prints each command and needs no
+ * display, so the receiver can run on a headless CI machine.
+ */
+public class ReceiverMain {
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : TcpTransport.DEFAULT_PORT;
+		String sinkName = args.length > 1 ? args[1] : "log";
+
+		InputSink sink;
+		if (sinkName.equals("robot")) {
+			sink = new RobotSink();
+		} else if (sinkName.equals("log")) {
+			sink = new LoggingSink(System.out);
+		} else {
+			System.err.println("Unknown sink " + sinkName + ", expected robot or log");
+			System.exit(2);
+			return;
+		}
+
+		ServerSocket server = new ServerSocket(port);
+		System.out.println("Listening on port " + server.getLocalPort());
+		while (true) {
+			Socket socket = server.accept();
+			System.out.println("Connected to " + socket.getRemoteSocketAddress());
+			CommandReceiver receiver = new CommandReceiver(new TcpTransport(socket), sink);
+			receiver.run();
+			if (receiver.getFailure() != null) {
+				System.out.println("Connection failed: " + receiver.getFailure());
+			}
+			System.out.println("Disconnected");
+		}
+	}
+}
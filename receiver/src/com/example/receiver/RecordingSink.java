@@ -0,0 +1,63 @@
+package com.example.receiver;
+
+import com.example.RemoteCommand;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps every command it receives, together with the time it arrived, so
+ * tests can assert on exactly what was decoded and when.
+ */
+public class RecordingSink implements InputSink {
+	private final List<RemoteCommand> commands = new ArrayList<RemoteCommand>();
+	private final List<Long> arrivalNanos = new ArrayList<Long>();
+
+	public synchronized void execute(RemoteCommand command) {
+		RemoteCommand copy = new RemoteCommand();
+		copy.command = command.command;
+		copy.parameter1 = command.parameter1;
+		copy.parameter2 = command.parameter2;
+		copy.string1 = command.string1;
+		commands.add(copy);
+		arrivalNanos.add(System.nanoTime());
+		notifyAll();
+	}
+
+	/**
+	 * Waits until at least count commands have been recorded.
+	 * @return True if they arrived before the timeout
+	 */
+	public synchronized boolean awaitCount(int count, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000;
+		while (commands.size() < count) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining / 1000000, (int) (remaining % 1000000));
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a snapshot of the commands recorded so far.
+	 */
+	public synchronized List<RemoteCommand> getCommands() {
+		return new ArrayList<RemoteCommand>(commands);
+	}
+
+	/**
+	 * Returns the System.nanoTime() at which each command arrived, in the
+	 * same order as {@link #getCommands()}.
+	 */
+	public synchronized List<Long> getArrivalNanos() {
+		return new ArrayList<Long>(arrivalNanos);
+	}
+
+	public synchronized void clear() {
+		commands.clear();
+		arrivalNanos.clear();
+	}
+}
@@ -0,0 +1,112 @@
+package com.example.receiver;
+
+import com.example.RemoteCommand;
+import com.example.RemoteValues;
+
+import java.awt.AWTException;
+import java.awt.MouseInfo;
+import java.awt.Point;
+import java.awt.PointerInfo;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+
+/**
+ * Replays commands as real mouse and keyboard input with java.awt.Robot.
+ * Text is typed by pasting it through the system clipboard, which handles
+ * any character the focused application accepts. Robot can only turn the
+ * wheel by whole notches, so high-resolution scrolling is summed until it
+ * makes up a notch. A SYNC returns once the injected input has been
+ * processed, and no later; how long an application then takes to react,
+ * such as a new tab taking focus, is for the sender to allow for.
+ * Requires a display.
+ */
+public class RobotSink implements InputSink {
+	private final Robot robot;
+	// MOUSE_SCROLL_PRECISE units not yet turned into a wheel notch
+	private int scrollRemainder = 0;
+
+	public RobotSink() throws AWTException {
+		robot = new Robot();
+	}
+
+	public void execute(RemoteCommand command) {
+		switch (command.command) {
+		case RemoteValues.MOVE_MOUSE_BY:
+			PointerInfo pointer = MouseInfo.getPointerInfo();
+			if (pointer != null) {
+				Point p = pointer.getLocation();
+				robot.mouseMove(p.x + command.parameter1, p.y + command.parameter2);
+			}
+			break;
+		case RemoteValues.MOUSE_SCROLL:
+			// Dragging two fingers down should move the content down
+			robot.mouseWheel(-command.parameter1);
+			break;
+		case RemoteValues.MOUSE_SCROLL_PRECISE:
+			scrollRemainder += command.parameter1;
+			int notches = scrollRemainder / RemoteValues.SCROLL_UNITS_PER_NOTCH;
+			if (notches != 0) {
+				scrollRemainder -= notches * RemoteValues.SCROLL_UNITS_PER_NOTCH;
+				robot.mouseWheel(-notches);
+			}
+			break;
+		case RemoteValues.MOUSE_LEFT:
+			click(InputEvent.BUTTON1_DOWN_MASK);
+			break;
+		case RemoteValues.MOUSE_RIGHT:
+			click(InputEvent.BUTTON3_DOWN_MASK);
+			break;
+		case RemoteValues.TYPE:
+			paste(command.string1);
+			break;
+		case RemoteValues.ENTER:
+			key(KeyEvent.VK_ENTER);
+			break;
+		case RemoteValues.TAB:
+			key(KeyEvent.VK_TAB);
+			break;
+		case RemoteValues.BACKSPACE:
+			chord(KeyEvent.VK_CONTROL, KeyEvent.VK_BACK_SPACE);
+			break;
+		case RemoteValues.DELETE_CHARS:
+			for (int i = 0; i < command.parameter1; i++) {
+				key(KeyEvent.VK_BACK_SPACE);
+			}
+			break;
+		case RemoteValues.NEW_TAB:
+			chord(KeyEvent.VK_CONTROL, KeyEvent.VK_T);
+			break;
+		case RemoteValues.SYNC:
+			robot.waitForIdle();
+			break;
+		}
+	}
+
+	private void click(int button) {
+		robot.mousePress(button);
+		robot.mouseRelease(button);
+	}
+
+	private void key(int key) {
+		robot.keyPress(key);
+		robot.keyRelease(key);
+	}
+
+	private void chord(int modifier, int key) {
+		robot.keyPress(modifier);
+		key(key);
+		robot.keyRelease(modifier);
+	}
+
+	private void paste(String text) {
+		if (text == null || text.length() == 0) {
+			return;
+		}
+		StringSelection selection = new StringSelection(text);
+		Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, selection);
+		chord(KeyEvent.VK_CONTROL, KeyEvent.VK_V);
+	}
+}
@@ -0,0 +1,90 @@
+package com.example;
+
+/**
+ * Maps finger speed to a cursor gain, so slow movements stay precise and
+ * fast swipes cover a large desktop. The gain is
+ *
+ * <pre>
+ *   gain(speed) = min(maxGain, sensitivity * (1 + acceleration * speed^exponent))
+ * </pre>
+ *
+ * with speed in pixels per millisecond. The curve is sampled into a
+ * table when it is built and {@link #getGain(float)} interpolates between
+ * neighbouring entries, so looking up a gain costs a few arithmetic
+ * operations and no {@link Math#pow}.
+ *
+ * Immutable and thread safe.
+ */
+public final class AccelerationCurve {
+	/** Finger speed, in pixels per millisecond, between table entries */
+	public static final float SPEED_STEP = 1 / 16f;
+	/** Number of table entries; speeds past the last one use its gain */
+	public static final int TABLE_SIZE = 129;
+
+	/** Moves the cursor exactly as far as the finger */
+	public static final AccelerationCurve FLAT = new AccelerationCurve(1, 0, 1, 1);
+	/** Reaches about 5x at a fast swipe of 4 px/ms, capped at 6x */
+	public static final AccelerationCurve DEFAULT = new AccelerationCurve(1, 0.5f, 1.5f, 6);
+
+	private final float sensitivity;
+	private final float acceleration;
+	private final float exponent;
+	private final float maxGain;
+	private final float[] table = new float[TABLE_SIZE];
+
+	/**
+	 * @param sensitivity   The gain of a motionless finger
+	 * @param acceleration  How strongly speed adds to the gain, 0 for none
+	 * @param exponent      How sharply the gain rises with speed
+	 * @param maxGain       The largest gain the curve will produce
+	 */
+	public AccelerationCurve(float sensitivity, float acceleration, float exponent, float maxGain) {
+		if (!(sensitivity > 0) || acceleration < 0 || !(exponent > 0) || maxGain < sensitivity) {
+			throw new IllegalArgumentException("sensitivity " + sensitivity
+					+ ", acceleration " + acceleration + ", exponent " + exponent
+					+ ", maxGain " + maxGain);
+		}
+		this.sensitivity = sensitivity;
+		this.acceleration = acceleration;
+		this.exponent = exponent;
+		this.maxGain = maxGain;
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			double speed = i * SPEED_STEP;
+			double gain = sensitivity * (1 + acceleration * Math.pow(speed, exponent));
+			table[i] = (float) Math.min(maxGain, gain);
+		}
+	}
+
+	/**
+	 * Returns the gain for a finger moving at the given speed.
+	 * @param speed Pixels per millisecond
+	 */
+	public float getGain(float speed) {
+		float position = speed / SPEED_STEP;
+		if (!(position > 0)) {
+			return table[0];
+		}
+		if (position >= TABLE_SIZE - 1) {
+			return table[TABLE_SIZE - 1];
+		}
+		int index = (int) position;
+		float fraction = position - index;
+		return table[index] + (table[index + 1] - table[index]) * fraction;
+	}
+
+	public float getSensitivity() {
+		return sensitivity;
+	}
+
+	public float getAcceleration() {
+		return acceleration;
+	}
+
+	public float getExponent() {
+		return exponent;
+	}
+
+	public float getMaxGain() {
+		return maxGain;
+	}
+}
@@ -3,49 +3,58 @@ package com.example.BluetoothRemote;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.MotionEvent;
 
+import com.example.AccelerationCurve;
+import com.example.BulkTextTransfer;
+import com.example.CommandEncoder;
+import com.example.CommandQueue;
+import com.example.FrameDecoder;
+import com.example.GestureEngine;
+import com.example.KineticScroller;
+import com.example.LiveTyper;
+import com.example.CompiledMacro;
+import com.example.Macro;
+import com.example.MacroRunner;
 import com.example.RemoteCommand;
 import com.example.RemoteValues;
+import com.example.RttEstimator;
+import com.example.SendRateController;
+import com.example.transport.Transport;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * thread for performing data transmissions when connected. Commands from
+ * the handle methods are queued and written by a separate sender thread,
+ * so the calling thread never blocks on the socket.
+ *
+ * The connection itself is reached through a {@link Transport}, RFCOMM by
+ * default, so the same state machine and command path also run over TCP
+ * or an in-process loopback.
  */
 public class BluetoothCommandService {
 
-    // Parameters
-    private long timeLastSend = System.currentTimeMillis() / 10;
-    private int mPreviousX = -1;
-    private int mPreviousY = -1;
-    private int mPreviousScrollY = -1;
-    private int downXPosition = -1;
-    private int downYPosition = -1;
-    private int upXPosition = -1;
-    private int upYPosition = -1;
-    private int scrollAmount = -1;
-    private int parameter1 = 0;
-    private int parameter2 = 0;
-
     // Debugging
     private static final String TAG = "BluetoothCommandService";
     private static final boolean D = true;
 
-    // Unique UUID for this application
-    private static final UUID MY_UUID_SECURE =
-            UUID.fromString("002b8631-0000-1000-8000-00805f9b34fb");
+    // How often a CHECK_CONNECTION probe is sent to measure the round-trip time
+    private static final long PING_INTERVAL = 1000;
+
+    // How long the sender keeps one BATCH frame open, see CommandEncoder.MAX_BATCH_BYTES
+    private static final long MAX_BATCH_NANOS = 4000000; // 4 ms
 
     // Member fields
     private final BluetoothAdapter mAdapter;
@@ -53,8 +62,32 @@ public class BluetoothCommandService {
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private int mState;
-    private BluetoothSocket mSocket;
-    private OutputStream mOutStream;
+    private final CommandQueue mOutQueue;
+    private final FrameScheduler mFrameScheduler;
+    private final BulkTextTransfer mBulkTransfer;
+    private final MacroRunner mMacroRunner;
+    private final SendRateController mRateController = new SendRateController();
+    private final GestureEngine.Listener mGestureListener = new GestureEngine.Listener() {
+        public void onCommand(int command, int parameter1, int parameter2) {
+            send(command, parameter1, parameter2, null);
+        }
+    };
+    private final GestureEngine mGestureEngine =
+            new GestureEngine(mGestureListener, mRateController);
+    private final KineticScroller mKineticScroller = new KineticScroller(mGestureListener);
+    private final LiveTyper mLiveTyper = new LiveTyper(new LiveTyper.Listener() {
+        public boolean onDelete(int count) {
+            return send(RemoteValues.DELETE_CHARS, count, 0, null);
+        }
+
+        public boolean onInsert(CharSequence text, int start, int end) {
+            return send(RemoteValues.TYPE, 0, 0, text, start, end);
+        }
+    });
+    private final RttEstimator mRttEstimator = new RttEstimator();
+    // Share of the mean round-trip time that cursor motion is predicted over, 0 for none
+    private volatile float mPredictionRttFraction = 0;
+    private volatile long mPredictionHorizon = 0;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -68,10 +101,53 @@ public class BluetoothCommandService {
      * @param handler  A Handler to send messages back to the UI Activity
      */
     public BluetoothCommandService(Context context, Handler handler) {
+        this(context, handler, CommandQueue.DEFAULT_CAPACITY, CommandQueue.FULL_DROP_NEWEST);
+    }
+
+    /**
+     * Constructor. Prepares a new BluetoothRemote session.
+     * @param context        The UI Activity Context
+     * @param handler        A Handler to send messages back to the UI Activity
+     * @param queueCapacity  The number of commands that may wait to be sent
+     * @param fullPolicy     What to drop when the queue is full, either
+     *                       {@link CommandQueue#FULL_DROP_NEWEST} or
+     *                       {@link CommandQueue#FULL_DROP_OLDEST}
+     */
+    public BluetoothCommandService(Context context, Handler handler,
+                                   int queueCapacity, int fullPolicy) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = STATE_NONE;
         mHandler = handler;
-        mSocket = null;
+        mOutQueue = new CommandQueue(queueCapacity, fullPolicy);
+        mOutQueue.setMotionGated(true);
+        mFrameScheduler = new FrameScheduler(mOutQueue);
+        mBulkTransfer = new BulkTextTransfer(mOutQueue, new BulkTextTransfer.Listener() {
+            public void onProgress(int transfer, int acknowledged, int total) {
+                mHandler.obtainMessage(BluetoothRemote.MESSAGE_TRANSFER_PROGRESS,
+                        acknowledged, total, transfer).sendToTarget();
+            }
+
+            public void onFinished(int transfer, boolean completed) {
+                mHandler.obtainMessage(BluetoothRemote.MESSAGE_TRANSFER_FINISHED,
+                        completed ? 1 : 0, -1, transfer).sendToTarget();
+            }
+        });
+        mMacroRunner = new MacroRunner(new MacroRunner.Writer() {
+            public boolean write(byte[] frames, int syncToken) {
+                synchronized (BluetoothCommandService.this) {
+                    if (mState != STATE_CONNECTED) return false;
+                }
+                // Behind whatever text or keys are already queued, and with
+                // nothing queued between the frames and their SYNC
+                synchronized (mOutQueue) {
+                    if (frames.length > 0 && !mOutQueue.offerFrames(frames)) return false;
+                    return syncToken == 0
+                            || mOutQueue.offer(RemoteValues.SYNC, syncToken, 0, null);
+                }
+            }
+        }, null);
+        mGestureEngine.setAccelerationCurve(AccelerationCurve.DEFAULT);
+        mGestureEngine.setKineticScroller(mKineticScroller);
     }
 
     /**
@@ -98,8 +174,6 @@ public class BluetoothCommandService {
     public synchronized void start() {
         if (D) Log.d(TAG, "start");
 
-        mSocket = null;
-
         // Cancel any thread attempting to make a connection
         if (mConnectThread != null) {
             mConnectThread.cancel();
@@ -116,13 +190,20 @@ public class BluetoothCommandService {
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start the ConnectThread to initiate an RFCOMM connection to a remote device.
      * @param device  The BluetoothDevice to connect
      */
     public synchronized void connect(BluetoothDevice device) {
-        if (D) Log.d(TAG, "connect to: " + device);
+        connect(new RfcommTransport(mAdapter, device));
+    }
 
-        mSocket = null;
+    /**
+     * Start the ConnectThread to initiate a connection over any transport,
+     * such as TCP or an in-process loopback.
+     * @param transport  The transport to connect
+     */
+    public synchronized void connect(Transport transport) {
+        if (D) Log.d(TAG, "connect to: " + transport);
 
         // Cancel any thread attempting to make a connection
         if (mState == STATE_CONNECTING) {
@@ -139,19 +220,17 @@ public class BluetoothCommandService {
         }
 
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
+        mConnectThread = new ConnectThread(transport);
         mConnectThread.start();
         setState(STATE_CONNECTING);
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * Start the ConnectedThread to begin managing a connection
+     * @param transport  The transport on which the connection was made
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
+    public synchronized void connected(Transport transport) {
+        if (D) Log.d(TAG, "connected, transport: " + transport);
 
         // Cancel the thread that completed the connection
         if (mConnectThread != null) {
@@ -165,21 +244,29 @@ public class BluetoothCommandService {
             mConnectedThread = null;
         }
 
+        // Drop anything left over from a previous connection
+        mBulkTransfer.cancel();
+        mMacroRunner.cancel();
+        mOutQueue.open();
+        mRateController.reset();
+        mRttEstimator.reset();
+        mPredictionHorizon = 0;
+
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
+        mConnectedThread = new ConnectedThread(transport);
         mConnectedThread.start();
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(BluetoothRemote.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(BluetoothRemote.DEVICE_NAME, device.getName());
+        bundle.putString(BluetoothRemote.DEVICE_NAME, transport.getName());
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
         // Send the address of the connected device back to the UI Activity
         msg = mHandler.obtainMessage(BluetoothRemote.MESSAGE_DEVICE_ADDRESS);
         bundle = new Bundle();
-        bundle.putString(BluetoothRemote.DEVICE_ADDRESS, device.getAddress());
+        bundle.putString(BluetoothRemote.DEVICE_ADDRESS, transport.getAddress());
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
@@ -202,24 +289,154 @@ public class BluetoothCommandService {
             mConnectedThread = null;
         }
 
+        mKineticScroller.shutdown();
+        mBulkTransfer.cancel();
+        mMacroRunner.shutdown();
+
         setState(STATE_NONE);
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * Queue a command for the SenderThread and return immediately. Nothing
+     * is allocated per call; the command waits in a preallocated slot.
+     * @param command     One of the {@link RemoteValues} opcodes
+     * @param parameter1  X coordinate change/scroll amount
+     * @param parameter2  Y coordinate change
+     * @param text        The text for a TYPE command, otherwise null
+     * @see SenderThread
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
+    private boolean send(int command, int parameter1, int parameter2, String text) {
+        return send(command, parameter1, parameter2, text, 0, text == null ? 0 : text.length());
+    }
+
+    /**
+     * Queue a command carrying the characters text[start, end). They are
+     * copied into the queue, so no String is created for them.
+     * @return False if the command was not queued
+     */
+    private boolean send(int command, int parameter1, int parameter2,
+                         CharSequence text, int start, int end) {
         synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+            if (mState != STATE_CONNECTED) return false;
+        }
+        if (!mOutQueue.offer(command, parameter1, parameter2, text, start, end)) {
+            if (D) Log.d(TAG, "outbound queue full, dropped command " + command);
+            return false;
+        }
+        if (CommandQueue.priorityOf(command) == CommandQueue.PRIORITY_MOTION
+                && mOutQueue.isMotionGated()) {
+            mFrameScheduler.requestFrame();
         }
-        // Perform the write unsynchronized
-        r.write(out);
+        return true;
+    }
+
+    /**
+     * Choose whether mouse moves and scrolls are sent once per display
+     * frame, together with everything else produced during that frame,
+     * or as soon as the sender thread is free. Clicks, text and other
+     * discrete commands are always sent immediately. On by default.
+     * @see FrameScheduler
+     */
+    public void setFrameAlignedSends(boolean aligned) {
+        mOutQueue.setMotionGated(aligned);
+    }
+
+    /**
+     * Return the number of commands dropped because the outbound queue was full.
+     */
+    public long getDroppedCommandCount() {
+        return mOutQueue.getDroppedCount();
+    }
+
+    /**
+     * Return the number of mouse moves and scrolls that were merged into an
+     * unsent command of the same kind instead of being sent on their own.
+     */
+    public long getMergedCommandCount() {
+        return mOutQueue.getMergedCount();
+    }
+
+    /**
+     * Return the time currently chosen between mouse move sends, in milliseconds.
+     * @see SendRateController
+     */
+    public long getMotionSendInterval() {
+        return mRateController.getInterval();
+    }
+
+    /**
+     * Return the mouse move send rate currently chosen, in updates per second.
+     */
+    public float getMotionSendRate() {
+        return mRateController.getRate();
+    }
+
+    /**
+     * Return the smoothed time a write to the socket takes, in milliseconds.
+     */
+    public float getAverageWriteMillis() {
+        return mRateController.getAverageWriteMillis();
+    }
+
+    /**
+     * Return the smallest recent round-trip time to the server in
+     * milliseconds, or -1 if none has been measured on this connection.
+     * @see RttEstimator
+     */
+    public float getRttMinMillis() {
+        return toMillis(mRttEstimator.getMin());
+    }
+
+    /**
+     * Return the mean recent round-trip time in milliseconds, or -1.
+     */
+    public float getRttMeanMillis() {
+        return toMillis(mRttEstimator.getMean());
+    }
+
+    /**
+     * Return the 99th percentile of recent round-trip times in milliseconds, or -1.
+     */
+    public float getRttP99Millis() {
+        return toMillis(mRttEstimator.getPercentile(99));
+    }
+
+    /**
+     * Turn on cursor motion prediction to hide link latency. The cursor is
+     * led ahead of the finger by its predicted motion over the given share
+     * of the measured mean round-trip time, and the prediction is corrected
+     * with every real sample.
+     * @param rttFraction  The share of the round-trip time to predict over,
+     *                     around 0.5 for the one-way delay; 0 turns it off
+     * @see com.example.MotionPredictor
+     */
+    public void setMotionPrediction(float rttFraction) {
+        mPredictionRttFraction = Math.max(0, rttFraction);
+        updatePredictionHorizon();
+    }
+
+    /**
+     * Return the current cursor prediction horizon in milliseconds, 0 when off.
+     */
+    public long getPredictionHorizon() {
+        return mPredictionHorizon;
+    }
+
+    private void updatePredictionHorizon() {
+        long mean = mRttEstimator.getMean();
+        mPredictionHorizon = mean < 0 ? 0 : (long) (mean * mPredictionRttFraction / 1000);
+    }
+
+    private static float toMillis(long micros) {
+        return micros < 0 ? -1 : micros / 1000f;
+    }
+
+    /**
+     * Return the low 32 bits of a monotonic microsecond clock, the
+     * timestamp format carried by CHECK_CONNECTION probes.
+     */
+    private static int microsTimestamp() {
+        return (int) (System.nanoTime() / 1000);
     }
 
     /**
@@ -239,8 +456,19 @@ public class BluetoothCommandService {
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
+     * Both the reading and the sending thread may notice the same failure,
+     * so only the first report for the current connection is acted on.
+     * @param lost  The connection that failed
      */
-    private void connectionLost() {
+    private void connectionLost(ConnectedThread lost) {
+        synchronized (this) {
+            if (lost != mConnectedThread) return;
+            mConnectedThread = null;
+        }
+        lost.cancel();
+        mBulkTransfer.cancel();
+        mMacroRunner.cancel();
+
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(BluetoothRemote.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -263,44 +491,28 @@ public class BluetoothCommandService {
      * succeeds or fails.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
-
-        public ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = "Secure";
+        private final Transport mmTransport;
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(
-                        MY_UUID_SECURE);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            mSocket = tmp;
+        public ConnectThread(Transport transport) {
+            mmTransport = transport;
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
+            Log.i(TAG, "BEGIN mConnectThread " + mmTransport);
+            setName("ConnectThread");
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
+            // Make a connection through the transport
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
-                mSocket.connect();
+                mmTransport.connect();
             } catch (Exception e) {
-                // Close the socket
+                // Close the transport
                 try {
-                    mSocket.close();
+                    mmTransport.close();
                 } catch (Exception e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+                    Log.e(TAG, "unable to close() " + mmTransport +
+                            " during connection failure", e2);
                 }
                 connectionFailed();
                 return;
@@ -312,251 +524,341 @@ public class BluetoothCommandService {
             }
 
             // Start the connected thread
-            connected(mSocket, mmDevice, mSocketType);
+            connected(mmTransport);
         }
 
         public void cancel() {
             try {
-                mSocket.close();
-                mSocket = null;
-
+                mmTransport.close();
             } catch (Exception e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                Log.e(TAG, "close() of connect " + mmTransport + " failed", e);
             }
         }
     }
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It reads everything the server sends back, and owns the
+     * SenderThread that performs outgoing transmissions.
      */
     private class ConnectedThread extends Thread {
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mSocket = socket;
+        private final Transport mmTransport;
+        private final InputStream mmInStream;
+        private final OutputStream mmOutStream;
+        private final SenderThread mmSender;
+        private volatile boolean mmRunning = true;
+
+        public ConnectedThread(Transport transport) {
+            Log.d(TAG, "create ConnectedThread: " + transport);
+            mmTransport = transport;
+            InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket output stream
+            // Get the transport's input and output streams
             try {
-                tmpOut = socket.getOutputStream();
+                tmpIn = transport.getInputStream();
+                tmpOut = transport.getOutputStream();
             } catch (Exception e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
-            mOutStream = tmpOut;
+            mmInStream = tmpIn;
+            mmOutStream = tmpOut;
+            mmSender = new SenderThread(this, tmpOut);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-        }
+            mmSender.start();
 
-        /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
-         */
-        public void write(byte[] buffer) {
+            FrameDecoder decoder = new FrameDecoder();
+            RemoteCommand reply = new RemoteCommand();
+
+            // Keep listening to the InputStream while connected
             try {
-                mOutStream.write(buffer);
-                mOutStream.flush();
+                while (decoder.fill(mmInStream) != -1) {
+                    while (decoder.next()) {
+                        switch (decoder.command()) {
+                        case RemoteValues.CHECK_CONNECTION_REPLY:
+                            decoder.read(reply);
+                            // int arithmetic keeps the difference right across clock wrap
+                            int rtt = microsTimestamp() - reply.parameter2;
+                            if (rtt >= 0) {
+                                mRttEstimator.addSample(rtt);
+                                updatePredictionHorizon();
+                            }
+                            break;
+                        case RemoteValues.TEXT_CHUNK_ACK:
+                            decoder.read(reply);
+                            mBulkTransfer.onAck(reply.parameter1, reply.parameter2);
+                            break;
+                        case RemoteValues.SYNC_ACK:
+                            decoder.read(reply);
+                            mMacroRunner.onSyncAck(reply.parameter1);
+                            break;
+                        }
+                    }
+                }
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-                connectionLost();
+                if (mmRunning) Log.e(TAG, "disconnected", e);
+            }
+            if (mmRunning) {
+                connectionLost(this);
             }
         }
 
         public void cancel() {
+            mmRunning = false;
+            mmSender.cancel();
             try {
-                mSocket.close();
-                mSocket = null;
+                mmTransport.close();
             } catch (Exception e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
         }
     }
 
-    public void checkConnection() {
-        RemoteCommand rcm = new RemoteCommand();
-        byte[] buffer;
+    /**
+     * This thread runs during a connection and is the only thread that
+     * writes queued commands to the socket, so a slow link blocks it
+     * rather than the UI. Commands that are already waiting when it wakes
+     * up are encoded together into a BATCH frame and written with a
+     * single flush.
+     */
+    private class SenderThread extends Thread {
+        private final ConnectedThread mmConnection;
+        private final OutputStream mmOutStream;
+        // Reused for every command sent on this connection
+        private final CommandEncoder mmEncoder = new CommandEncoder();
+        private final RemoteCommand mmCommand = new RemoteCommand();
+        private final StringBuilder mmText = new StringBuilder();
+        private volatile boolean mmRunning = true;
+        private int mmPingSequence = 0;
+        private long mmLastPing = -PING_INTERVAL;
+
+        public SenderThread(ConnectedThread connection, OutputStream out) {
+            mmConnection = connection;
+            mmOutStream = out;
+            mmEncoder.setBatchLimits(CommandEncoder.MAX_BATCH_BYTES, MAX_BATCH_NANOS);
+            mmEncoder.setCompressText(true);
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mSenderThread");
+            setName("SenderThread");
 
-        rcm.command = RemoteValues.CHECK_CONNECTION;
+            try {
+                while (mmRunning) {
+                    // The same monotonic clock as MotionEvent.getEventTime()
+                    long now = SystemClock.uptimeMillis();
+                    if (now - mmLastPing >= PING_INTERVAL) {
+                        mmLastPing = now;
+                        mOutQueue.offer(RemoteValues.CHECK_CONNECTION, 0, 0, null);
+                    }
+                    if (!mOutQueue.take(mmCommand, mmText, PING_INTERVAL)) {
+                        continue;
+                    }
+                    do {
+                        if (mmCommand.command == CommandQueue.ENCODED_FRAMES) {
+                            // A macro's segment, encoded when it was compiled
+                            mmEncoder.putFrames(mOutQueue.getTakenFrames(), 0,
+                                    mmCommand.parameter1);
+                            continue;
+                        }
+                        if (mmCommand.command == RemoteValues.CHECK_CONNECTION) {
+                            // Stamp probes as late as possible so queueing is not counted
+                            mmCommand.parameter1 = ++mmPingSequence;
+                            mmCommand.parameter2 = microsTimestamp();
+                        }
+                        // Text is encoded straight from the reused buffer
+                        mmEncoder.put(mmCommand.command, mmCommand.parameter1,
+                                mmCommand.parameter2, mmText);
+                    } while (!mmEncoder.isBatchFull() && mOutQueue.take(mmCommand, mmText, 0));
+
+                    long start = System.nanoTime();
+                    synchronized (mmOutStream) {
+                        mmEncoder.writeTo(mmOutStream);
+                        mmOutStream.flush();
+                    }
+                    mRateController.onWriteComplete(System.nanoTime() - start,
+                            mOutQueue.readyCount());
+                }
+            } catch (InterruptedException e) {
+                // cancel() was called
+            } catch (IOException e) {
+                if (mmRunning) {
+                    Log.e(TAG, "Exception during write", e);
+                    connectionLost(mmConnection);
+                }
+            } finally {
+                mmEncoder.release();
+            }
+        }
+
+        public void cancel() {
+            mmRunning = false;
+            interrupt();
+        }
+    }
 
-        buffer = rcm.getByteArray();
-        write(buffer);
+    public void checkConnection() {
+        send(RemoteValues.CHECK_CONNECTION, 0, 0, null);
     }
 
     public void handleNewTab() {
         // handle pressing the "New Tab" option. Simulates a Ctrl+T.
-        RemoteCommand rcm = new RemoteCommand();
-        byte[] buffer;
-
-        rcm.command = RemoteValues.NEW_TAB;
-
-        buffer = rcm.getByteArray();
-        write(buffer);
+        send(RemoteValues.NEW_TAB, 0, 0, null);
     }
 
     public void handleDelete() {
         // handle pressing the "Del" button. Simulates a Ctrl+Backspace.
-        RemoteCommand rcm = new RemoteCommand();
-        byte[] buffer;
-
-        rcm.command = RemoteValues.BACKSPACE;
-
-        buffer = rcm.getByteArray();
-        write(buffer);
+        send(RemoteValues.BACKSPACE, 0, 0, null);
     }
 
     public void handleText(String text) {
-        // handle sending text to the computer
-        RemoteCommand rcm = new RemoteCommand();
-        byte[] buffer;
+        // handle sending text to the computer. Text too long for one chunk
+        // is streamed, so no frame grows past what the receiver accepts.
+        // Either way keys and text sent after it are typed after it.
+        if (text.length() <= BulkTextTransfer.CHUNK_LENGTH) {
+            send(RemoteValues.TYPE, 0, 0, text);
+            return;
+        }
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+        }
+        mBulkTransfer.start(text);
+    }
 
-        rcm.command = RemoteValues.TYPE;
+    /**
+     * Stream long text, such as a clipboard paste, in acknowledged chunks.
+     * Clicks and moves can overtake its chunks, but keys and text sent after
+     * it are typed after it. Progress and completion are sent to the UI
+     * Activity as MESSAGE_TRANSFER_PROGRESS and MESSAGE_TRANSFER_FINISHED,
+     * with the transfer's number as the message's obj.
+     * @param text  The text to type on the computer
+     * @return The transfer's number, or 0 if there is no connection
+     * @see BulkTextTransfer
+     */
+    public int sendBulkText(String text) {
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return 0;
+        }
+        return mBulkTransfer.start(text);
+    }
 
-        rcm.string1 = text;
+    /**
+     * Stop a bulk text transfer, if it has not finished yet.
+     * @param transfer  The number returned by {@link #sendBulkText(String)}
+     */
+    public void cancelBulkText(int transfer) {
+        mBulkTransfer.cancel(transfer);
+    }
 
-        buffer = rcm.getByteArray();
-        write(buffer);
+    /**
+     * Live typing: send the edits that turn the text sent so far into the
+     * text box's current contents. Nothing is sent, or remembered as sent,
+     * while there is no connection.
+     * @param text  The whole current contents of the text box
+     * @return False if an edit could not be queued; calling again with
+     *         the text box's contents sends it then
+     * @see LiveTyper
+     */
+    public boolean handleTextChanged(CharSequence text) {
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return true;
+        }
+        return mLiveTyper.update(text);
     }
 
-    public void handleEnter() {
-        RemoteCommand rcm = new RemoteCommand();
-        byte[] buffer;
+    /**
+     * Forget the text sent by live typing, so clearing the text box
+     * afterwards does not delete it on the computer.
+     */
+    public void resetLiveText() {
+        mLiveTyper.reset();
+    }
 
-        rcm.command = RemoteValues.ENTER;
+    /**
+     * Run a sequence of commands, with its pauses and waits timed in the
+     * background, and return immediately. Starting a macro cancels the
+     * previous one.
+     * @param macro  The commands to send
+     * @see MacroRunner
+     */
+    public void runMacro(Macro macro) {
+        runMacro(macro.compile());
+    }
 
-        buffer = rcm.getByteArray();
-        write(buffer);
+    /**
+     * Run a macro that is already encoded. Each of its segments is written
+     * to the connection in one go, without passing through the queue.
+     * @param macro  The frames to send
+     */
+    public void runMacro(CompiledMacro macro) {
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+        }
+        mMacroRunner.start(macro);
     }
 
-    public void handleLeftClick() {
-        RemoteCommand rcm = new RemoteCommand();
-        byte[] buffer;
+    /**
+     * Stop the macro in progress, if any.
+     */
+    public void cancelMacro() {
+        mMacroRunner.cancel();
+    }
 
-        rcm.command = RemoteValues.MOUSE_LEFT;
+    public void handleEnter() {
+        send(RemoteValues.ENTER, 0, 0, null);
+    }
 
-        buffer = rcm.getByteArray();
-        write(buffer);
+    public void handleLeftClick() {
+        send(RemoteValues.MOUSE_LEFT, 0, 0, null);
     }
 
     public void handleRightClick() {
-        RemoteCommand rcm = new RemoteCommand();
-        byte[] buffer;
+        send(RemoteValues.MOUSE_RIGHT, 0, 0, null);
+    }
 
-        rcm.command = RemoteValues.MOUSE_RIGHT;
+    /**
+     * Set how finger speed scales cursor motion. Call from the thread that
+     * delivers touch events.
+     * @param acceleration  The curve, {@link AccelerationCurve#DEFAULT} initially
+     */
+    public void setPointerAcceleration(AccelerationCurve acceleration) {
+        mGestureEngine.setAccelerationCurve(acceleration);
+    }
 
-        buffer = rcm.getByteArray();
-        write(buffer);
+    /**
+     * Choose between whole wheel notches and high-resolution scrolling,
+     * which the receiving server has to support.
+     * @param precise  True to send MOUSE_SCROLL_PRECISE
+     */
+    public void setPreciseScroll(boolean precise) {
+        mGestureEngine.setPreciseScroll(precise);
     }
 
     public void handleTouch(MotionEvent m) {
-        if(m.getActionMasked() == MotionEvent.ACTION_DOWN){ // for recognizing a tap rather than a move
-            downXPosition = (int) m.getX();
-            downYPosition = (int) m.getY();
-        }
-
-        else if(m.getActionMasked() == MotionEvent.ACTION_UP){ // for recognizing a tap rather than a move
-            upXPosition = (int) m.getX();
-            upYPosition = (int) m.getY();
-
-            int dx = Math.abs(upXPosition - downXPosition);
-            int dy = Math.abs(upYPosition - downYPosition);
-            if(dx <= 5 && dy <= 5){
-                handleLeftClick();
-            }
-        }
-
-
-            if((System.currentTimeMillis() / 10 - timeLastSend) > 2){ // lower amount of packets sent
-                int x = (int) m.getX();
-                int y = (int) m.getY();
-                if(x != 0 || y != 0){
-                    int action = m.getActionMasked();
-                    if(action != MotionEvent.ACTION_MOVE){
-                        mPreviousX = x;
-                        mPreviousY = y;
-                    }
-
-                    RemoteCommand rcm = new RemoteCommand();
-                    byte[] buffer;
-
-                    int dx = x - mPreviousX;
-                    int dy = y - mPreviousY;
-
-                    rcm.command = RemoteValues.MOVE_MOUSE_BY;
-
-                    parameter1 = dx;
-                    parameter2 = dy;
-
-                    // re-init
-                    rcm.parameter1 = parameter1;
-                    rcm.parameter2 = parameter2;
-
-                    buffer = rcm.getByteArray();
-                    write(buffer);
-                    timeLastSend = System.currentTimeMillis() / 10;
-                    parameter1= 0;
-                    parameter2= 0;
-
-                    mPreviousX = x;
-                    mPreviousY = y;
-                }
-            }
-        }
+        handleSamples(1, m);
+    }
 
     public void handleMultiTouch(MotionEvent m) {
-        if(m.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN){ // for recognizing a tap rather than a move
-            downXPosition = (int) m.getX();
-            downYPosition = (int) m.getY();
-        }
-
-        else if(m.getActionMasked() == MotionEvent.ACTION_POINTER_UP){ // for recognizing a tap rather than a move
-            upXPosition = (int) m.getX();
-            upYPosition = (int) m.getY();
-
-            int dx = Math.abs(upXPosition - downXPosition);
-            int dy = Math.abs(upYPosition - downYPosition);
-            if(dx <= 5 && dy <= 5){
-                handleRightClick();
-            }
-        }
-
-        int y = (int) m.getY();
-        if(y != 0){
-            int action = m.getActionMasked();
-            if(action != MotionEvent.ACTION_MOVE){
-                mPreviousScrollY = y;
-            }
-
-            RemoteCommand rcm = new RemoteCommand();
-            byte[] buffer;
-
-            rcm.command = RemoteValues.MOUSE_SCROLL;
-
-            int dy = y - mPreviousScrollY;
-
-            scrollAmount += dy;
-
-            if(scrollAmount >= 50 || scrollAmount <= -50){
-
-                parameter1 = scrollAmount/50;
-
-                // re-init
-                rcm.parameter1 = parameter1;
-
-                buffer = rcm.getByteArray();
-                write(buffer);
-                parameter1= 0;
-
-                scrollAmount = 0;
-            }
-
-            mPreviousScrollY = y;
-
+        handleSamples(2, m);
+    }
 
-            // to avoid incorrect mouse movements after scrolling
-            mPreviousX = (int) m.getX();
-            mPreviousY = (int) m.getY();
+    /**
+     * Feed every sample in the event to the gesture engine. Android batches
+     * the positions seen since the previous event into its history, so
+     * reading them keeps the fine shape of fast movements.
+     */
+    private void handleSamples(int pointerCount, MotionEvent m) {
+        mGestureEngine.setPredictionHorizon(mPredictionHorizon);
+        final int historySize = m.getHistorySize();
+        for (int h = 0; h < historySize; h++) {
+            mGestureEngine.addHistory(pointerCount, m.getHistoricalX(h), m.getHistoricalY(h),
+                    m.getHistoricalEventTime(h));
         }
+        mGestureEngine.onSample(pointerCount, m.getActionMasked(), m.getX(), m.getY(),
+                m.getEventTime());
     }
 
 }
@@ -4,8 +4,11 @@ package com.example.BluetoothRemote;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -13,7 +16,9 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.text.Editable;
 import android.text.InputType;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -23,21 +28,23 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.BookmarkStore;
+import com.example.CompiledMacro;
+import com.example.Macro;
+import com.example.MacroStore;
+import com.example.RemoteValues;
 import com.example.android.IntentIntegrator;
+import com.example.transport.TcpTransport;
 import com.example.android.IntentResult;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.util.List;
 
 /**
  * This is the main Activity that displays the current command session.
@@ -55,6 +62,8 @@ public class BluetoothRemote extends Activity {
     public static final int MESSAGE_DEVICE_ADDRESS = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_TRANSFER_PROGRESS = 6;
+    public static final int MESSAGE_TRANSFER_FINISHED = 7;
 
     // Key names received from the BluetoothCommandService Handler
     public static final String DEVICE_ADDRESS = "device_address";
@@ -81,8 +90,37 @@ public class BluetoothRemote extends Activity {
     // Member object for the command services
     private BluetoothCommandService mCommandService = null;
 
-    // File to save bookmarks to
-    private String filename = "bookmarks.txt";
+    // Bookmarks file written by earlier versions, imported once into the store
+    private static final String LEGACY_BOOKMARKS = "bookmarks.txt";
+    // Log the bookmarks are kept in
+    private static final String BOOKMARKS_LOG = "bookmarks.log";
+
+    // Bookmarks, loaded once per process
+    private static BookmarkStore sBookmarkStore = null;
+
+    // User-defined macros, kept compiled in macros.dat
+    private MacroStore mMacroStore = null;
+
+    // Whether each edit of the text box is sent as it happens
+    private boolean mLiveTyping = false;
+    // How long to wait before resending live edits the full queue refused, in milliseconds
+    private static final long LIVE_TYPING_RETRY = 100;
+    private final Runnable mLiveTypingRetry = new Runnable() {
+        public void run() {
+            if (mLiveTyping) sendLiveText();
+        }
+    };
+
+    // Longest wait for the computer to confirm a new tab has opened
+    private static final long NEW_TAB_TIMEOUT = 1000;
+    // Time the browser gets to focus the new tab's address bar once the
+    // computer has pressed Ctrl+T, in milliseconds
+    private static final long NEW_TAB_SETTLE = 150;
+
+    // Shows how far a clipboard paste has got, while one is being sent
+    private ProgressDialog mTransferDialog = null;
+    // Number of the paste shown by mTransferDialog
+    private int mPasteTransfer = 0;
 
 
     @Override
@@ -111,11 +149,21 @@ public class BluetoothRemote extends Activity {
 
             @Override
             public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
-                mCommandService.handleText(textBox.getText().toString());
-                textBox.setText("");
+                commitText();
                 return false;
             }
         });
+        textBox.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            public void afterTextChanged(Editable s) {
+                if (mLiveTyping) sendLiveText();
+            }
+        });
 
         deleteButton = (Button) findViewById(R.id.deleteButton);
         deleteButton.setOnClickListener(new View.OnClickListener() {
@@ -130,8 +178,7 @@ public class BluetoothRemote extends Activity {
         enterButton = (Button) findViewById(R.id.enterButton);
         enterButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                mCommandService.handleText(textBox.getText().toString());
-                textBox.setText("");
+                commitText();
                 mCommandService.handleEnter();
             }
         });
@@ -152,6 +199,14 @@ public class BluetoothRemote extends Activity {
         // Restore previously connected device from preferences
         SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
         mConnectedDeviceAddress = settings.getString("deviceAddress", null);
+
+        // Load the user's macros
+        mMacroStore = new MacroStore(new File(getFilesDir(), "macros.dat"));
+        try {
+            mMacroStore.load();
+        } catch (IOException e) {
+            toast("Error loading macros");
+        }
     }
 
     @Override
@@ -229,11 +284,25 @@ public class BluetoothRemote extends Activity {
         super.onDestroy();
         // Stop the Bluetooth command services
         if (mCommandService != null) mCommandService.stop();
+        mHandler.removeCallbacks(mLiveTypingRetry);
+        dismissTransferDialog();
         if(D) Log.e(TAG, "--- ON DESTROY ---");
     }
 
 
 
+    /**
+     * Sends the text box's contents by live typing. If the queue refused
+     * an edit, tries again shortly, so the computer catches up even if
+     * nothing else is typed.
+     */
+    private void sendLiveText() {
+        mHandler.removeCallbacks(mLiveTypingRetry);
+        if (!mCommandService.handleTextChanged(textBox.getText())) {
+            mHandler.postDelayed(mLiveTypingRetry, LIVE_TYPING_RETRY);
+        }
+    }
+
     private void ensureDiscoverable() {
         if(D) Log.d(TAG, "ensure discoverable");
         if (mBluetoothAdapter.getScanMode() !=
@@ -287,6 +356,19 @@ public class BluetoothRemote extends Activity {
             case MESSAGE_TOAST:
                 toast(msg.getData().getString(TOAST));
                 break;
+            case MESSAGE_TRANSFER_PROGRESS:
+                // Long text typed in the text box is streamed too, unseen
+                if ((Integer) msg.obj != mPasteTransfer) break;
+                if (mTransferDialog != null) {
+                    mTransferDialog.setMax(msg.arg2);
+                    mTransferDialog.setProgress(msg.arg1);
+                }
+                break;
+            case MESSAGE_TRANSFER_FINISHED:
+                if ((Integer) msg.obj != mPasteTransfer) break;
+                dismissTransferDialog();
+                if (msg.arg1 == 0) toast("Paste stopped before the end");
+                break;
             }
         }
     };
@@ -360,7 +442,16 @@ public class BluetoothRemote extends Activity {
         return "";
     }
 
+    /**
+     * Connects to a Bluetooth address, or over TCP to a "host" or
+     * "host:port" address, such as one remembered from a Wi-Fi connection.
+     * @param address The Bluetooth or TCP address
+     */
     private void connectDevice(String address) {
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            connectTcp(address);
+            return;
+        }
         try{
             // Get the BluetoothDevice object
             BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
@@ -372,6 +463,52 @@ public class BluetoothRemote extends Activity {
 
     }
 
+    private void connectTcp(String address) {
+        String host = address.trim();
+        int port = TcpTransport.DEFAULT_PORT;
+        int colon = host.lastIndexOf(':');
+        try {
+            if (colon >= 0) {
+                port = Integer.parseInt(host.substring(colon + 1));
+                host = host.substring(0, colon);
+            }
+        } catch (NumberFormatException e) {
+            toast("Incorrect port in " + address);
+            return;
+        }
+        if (host.length() == 0) {
+            toast("No computer address given");
+            return;
+        }
+        // The socket is opened on the ConnectThread, not here
+        mCommandService.connect(new TcpTransport(host, port));
+    }
+
+    /**
+     * Prompts for the address of a computer running the receiver on the
+     * same network, and connects to it over TCP.
+     */
+    private void promptTcpAddress() {
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle("Connect over Wi-Fi");
+        alert.setMessage("ex: \"192.168.1.10:" + TcpTransport.DEFAULT_PORT + "\"");
+
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
+        alert.setView(input);
+        alert.setPositiveButton("Connect", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                connectTcp(input.getText().toString());
+            }
+        });
+        alert.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                // Canceled.
+            }
+        });
+        alert.show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -399,6 +536,10 @@ public class BluetoothRemote extends Activity {
                     return false;
                 }
 
+            case R.id.connect_tcp:
+                // Connect to a receiver on the same network
+                promptTcpAddress();
+                return true;
             case R.id.discoverable:
                 // Ensure this device is discoverable by others
                 ensureDiscoverable();
@@ -416,6 +557,24 @@ public class BluetoothRemote extends Activity {
                 serverIntent = new Intent(this, BookmarkListActivity.class);
                 startActivityForResult(serverIntent, REQUEST_BOOKMARK);
                 return true;
+            case R.id.live_typing:
+                // Toggle sending each edit of the text box as it happens
+                mLiveTyping = !item.isChecked();
+                item.setChecked(mLiveTyping);
+                mCommandService.resetLiveText();
+                if (mLiveTyping) {
+                    // Send what is already in the box so both sides agree
+                    sendLiveText();
+                }
+                return true;
+            case R.id.paste_clipboard:
+                // Type the clipboard's text on the computer
+                pasteClipboard();
+                return true;
+            case R.id.macros:
+                // Choose a macro to run, or define one
+                showMacros();
+                return true;
             case R.id.scan_qr_code:
                 // Launch the qr code scanner
                 IntentIntegrator integrator = new IntentIntegrator(this);
@@ -426,9 +585,172 @@ public class BluetoothRemote extends Activity {
     }
 
     /**
-     * Prompts the user to add a bookmark, and then calls {@link #saveBookmarkToFile(String)}
-     * to save the url to bookmarks.txt.
-     * @see #saveBookmarkToFile(String)
+     * Sends the text box's contents, unless live typing already has, and
+     * clears it.
+     */
+    private void commitText() {
+        if (mLiveTyping) {
+            // Forget the sent text first so clearing the box deletes nothing
+            mCommandService.resetLiveText();
+        } else {
+            mCommandService.handleText(textBox.getText().toString());
+        }
+        textBox.setText("");
+    }
+
+    /**
+     * Sends the clipboard's text to the computer in chunks, showing a
+     * progress dialog that can stop it.
+     */
+    private void pasteClipboard() {
+        if (mCommandService.getState() != BluetoothCommandService.STATE_CONNECTED) {
+            toast(getString(R.string.not_connected));
+            return;
+        }
+        ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+        CharSequence text = null;
+        if (clipboard.hasPrimaryClip()) {
+            ClipData clip = clipboard.getPrimaryClip();
+            if (clip.getItemCount() > 0) text = clip.getItemAt(0).coerceToText(this);
+        }
+        if (text == null || text.length() == 0) {
+            toast("The clipboard is empty");
+            return;
+        }
+
+        dismissTransferDialog();
+        mTransferDialog = new ProgressDialog(this);
+        mTransferDialog.setTitle("Pasting clipboard");
+        mTransferDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mTransferDialog.setMax(text.length());
+        mTransferDialog.setCancelable(false);
+        mTransferDialog.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel",
+                new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                mCommandService.cancelBulkText(mPasteTransfer);
+            }
+        });
+        mTransferDialog.show();
+        // A paste replaces one that is still going
+        mCommandService.cancelBulkText(mPasteTransfer);
+        mPasteTransfer = mCommandService.sendBulkText(text.toString());
+        if (mPasteTransfer == 0) dismissTransferDialog();
+    }
+
+    private void dismissTransferDialog() {
+        if (mTransferDialog != null) {
+            mTransferDialog.dismiss();
+            mTransferDialog = null;
+        }
+    }
+
+    /**
+     * Lists the user's macros to run one, followed by entries to define a
+     * new macro or delete one.
+     */
+    private void showMacros() {
+        final List<String> names = mMacroStore.getNames();
+        final int count = names.size();
+        String[] items = new String[count + (count > 0 ? 2 : 1)];
+        names.toArray(items);
+        items[count] = "New macro…";
+        if (count > 0) items[count + 1] = "Delete macro…";
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Macros");
+        builder.setItems(items, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                if (which < count) {
+                    runMacro(names.get(which));
+                } else if (which == count) {
+                    defineMacro();
+                } else {
+                    chooseMacroToDelete(names);
+                }
+            }
+        });
+        builder.show();
+    }
+
+    private void runMacro(String name) {
+        if (mCommandService.getState() != BluetoothCommandService.STATE_CONNECTED) {
+            toast(getString(R.string.not_connected));
+            return;
+        }
+        CompiledMacro macro = mMacroStore.get(name);
+        if (macro != null) mCommandService.runMacro(macro);
+    }
+
+    /**
+     * Prompts for a macro's name and script, and saves it compiled.
+     * @see Macro#parse(String)
+     */
+    private void defineMacro() {
+        AlertDialog.Builder alert = new AlertDialog.Builder(this);
+        alert.setTitle("New Macro");
+        alert.setMessage("One step per line: type <text>, enter, tab, newtab, backspace, "
+                + "delete <n>, left, right, move <dx> <dy>, scroll <n>, wait <ms>, sync");
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        final EditText name = new EditText(this);
+        name.setHint("Name");
+        name.setSingleLine(true);
+        layout.addView(name);
+        final EditText script = new EditText(this);
+        script.setHint("newtab\nsync\ntype http://www.google.com\nenter");
+        script.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE);
+        script.setMinLines(4);
+        layout.addView(script);
+        alert.setView(layout);
+
+        alert.setPositiveButton("Save", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                String macroName = name.getText().toString().trim();
+                if (macroName.length() == 0) {
+                    toast("The macro needs a name");
+                    return;
+                }
+                try {
+                    mMacroStore.put(macroName, script.getText().toString());
+                    toast("Macro successfully saved");
+                } catch (IllegalArgumentException e) {
+                    toast("Macro not saved, could not understand " + e.getMessage());
+                } catch (IOException e) {
+                    toast("Error saving macro");
+                }
+            }
+        });
+        alert.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int whichButton) {
+                // Canceled.
+            }
+        });
+        alert.show();
+    }
+
+    private void chooseMacroToDelete(final List<String> names) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Delete Macro");
+        builder.setItems(names.toArray(new String[names.size()]),
+                new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                try {
+                    if (mMacroStore.remove(names.get(which))) {
+                        toast("Macro successfully deleted");
+                    }
+                } catch (IOException e) {
+                    toast("Error deleting macro");
+                }
+            }
+        });
+        builder.show();
+    }
+
+    /**
+     * Prompts the user to add a bookmark, and then calls {@link #saveBookmark(String)}
+     * to add the url to the bookmark store.
+     * @see #saveBookmark(String)
      * @see #deleteBookmark(String)
      */
     private void addBookmark() {
@@ -444,7 +766,7 @@ public class BluetoothRemote extends Activity {
         alert.setPositiveButton("Ok", new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int whichButton) {
                 String url = input.getText().toString();
-                saveBookmarkToFile(url);
+                saveBookmark(url);
             }
         });
 
@@ -458,21 +780,40 @@ public class BluetoothRemote extends Activity {
     }
 
     /**
-     * Adds a line to the end of bookmarks.txt containing the url given.
+     * Returns the bookmark store, loading it the first time. Bookmarks left
+     * in bookmarks.txt by earlier versions are moved into it.
+     * @param context  Any Context of this application
+     */
+    static synchronized BookmarkStore getBookmarkStore(Context context) throws IOException {
+        if (sBookmarkStore == null) {
+            Context app = context.getApplicationContext();
+            BookmarkStore store = new BookmarkStore(app.getFileStreamPath(BOOKMARKS_LOG));
+            store.load();
+            File legacy = app.getFileStreamPath(LEGACY_BOOKMARKS);
+            if (legacy.exists()) {
+                store.importLines(legacy);
+                legacy.delete();
+                // Left behind by the old delete, which rewrote bookmarks.txt through it
+                app.getFileStreamPath("tmp").delete();
+            }
+            sBookmarkStore = store;
+        }
+        return sBookmarkStore;
+    }
+
+    /**
+     * Adds the url given to the bookmark store.
      * @param url The url to add
      * @return True if the bookmark was added, False otherwise
      * @see #addBookmark()
      */
-    private boolean saveBookmarkToFile(String url){
-        boolean success = true;
+    private boolean saveBookmark(String url){
+        boolean success = false;
         try {
-            FileOutputStream fos = openFileOutput(filename, Context.MODE_APPEND);
-            fos.write(url.getBytes());
-            fos.write(System.getProperty("line.separator").getBytes());
-            fos.close();
+            success = getBookmarkStore(this).add(url);
+            if (!success) toast("Already bookmarked");
         }
         catch (Exception e) {
-            success = false;
             toast("Error saving bookmark");
         }
         if(success) {
@@ -483,48 +824,29 @@ public class BluetoothRemote extends Activity {
 
     /**
      * Sends commands to the connected {@link #mCommandService BluetoothCommandService}
-     * to open the URL as a new tab on the server.
+     * to open the URL as a new tab on the server. The URL is typed as soon
+     * as the server confirms the tab is open, and this returns at once.
      * @param url the URL to open on the server
      */
     public void openBookmark(String url){
-        mCommandService.handleNewTab();
-        mCommandService.handleText(url);
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        mCommandService.handleEnter();
+        mCommandService.runMacro(new Macro()
+                .key(RemoteValues.NEW_TAB)
+                .sync(NEW_TAB_TIMEOUT)
+                .delay(NEW_TAB_SETTLE)
+                .type(url)
+                .key(RemoteValues.ENTER));
     }
 
     /**
-     * Finds the line in bookmarks.txt which corresponds to the {@link String}
-     * url given, and calls {@link #removeBookmarkFromFile(int)} to delete
-     * the line from bookmarks.txt.
+     * Deletes the {@link String} url given from the bookmark store.
      * @param url The url to delete
      * @return True if the bookmark was deleted, False otherwise
-     * @see #removeBookmarkFromFile(int)
      * @see #addBookmark()
      */
     private boolean deleteBookmark(String url){
         boolean found = false;
-        int line = 1;
         try {
-            FileInputStream fis = openFileInput(filename);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
-            String bookmark;
-            bookmark = reader.readLine();
-            while (bookmark != null){
-                if(bookmark.equals(url)){
-                    found = true;
-                    removeBookmarkFromFile(line);
-                    break;
-                }
-                bookmark = reader.readLine();
-                line += 1;
-            }
-            reader.close();
-            fis.close();
+            found = getBookmarkStore(this).remove(url);
         } catch (Exception e) {
             toast("Error deleting bookmark");
         }
@@ -534,43 +856,6 @@ public class BluetoothRemote extends Activity {
         return found;
     }
 
-    /**
-     * Removes the given line from bookmarks.txt.
-     * @param lineNumber The line to delete from the file
-     * @throws IOException
-     * @see #deleteBookmark(String)
-     */
-    private void removeBookmarkFromFile(int lineNumber) {
-        FileOutputStream tmp = null;
-        FileInputStream fis = null;
-        try {
-            tmp = openFileOutput("tmp", Context.MODE_APPEND);
-            fis = openFileInput(filename);
-            BufferedReader br = new BufferedReader(new InputStreamReader(fis));
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(tmp));
-
-            for (int i = 1; i < lineNumber; i++)
-                bw.write(String.format("%s%n", br.readLine()));
-
-            br.readLine();
-
-            String line;
-            while (null != (line = br.readLine()))
-                bw.write(String.format("%s%n", line));
-
-            br.close();
-            bw.close();
-
-            Context context = getApplicationContext();
-            File oldFile = context.getFileStreamPath(filename);
-            File newFile = context.getFileStreamPath("tmp");
-            newFile.renameTo(oldFile);
-        } catch (IOException e) {
-            if(D)Log.e(TAG, e.getLocalizedMessage());
-        }
-
-    }
-
     private void toast(String text){
         Context context = getApplicationContext();
         Toast toast = Toast.makeText(context, text, Toast.LENGTH_LONG);
@@ -15,11 +15,9 @@ import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This Activity appears as a dialog. It lists any bookmarks and
@@ -58,32 +56,17 @@ public class BookmarkListActivity extends Activity {
         bookmarkListView.setOnItemClickListener(mBookmarkClickListener);
         bookmarkListView.setOnItemLongClickListener(mBookmarkLongClickListener);
 
-        // Get a set of current bookmarks
-        Set<String> bookmarks = new HashSet<String>();
-
-        try
-        {
-            FileInputStream fis = openFileInput("bookmarks.txt");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
-            String bookmark;
-            bookmark = reader.readLine();
-            while (bookmark != null){
-                bookmarks.add(bookmark);
-                bookmark = reader.readLine();
-            }
-            reader.close();
-            fis.close();
-        }
-        catch (Exception e)
-        {
+        // Get the current bookmarks, kept in memory after the first load
+        List<String> bookmarks = Collections.emptyList();
+        try {
+            bookmarks = BluetoothRemote.getBookmarkStore(this).getAll();
+        } catch (IOException e) {
             // error
         }
 
-        // If there are bookmarks, add each one to the ArrayAdapter
+        // If there are bookmarks, add them to the ArrayAdapter
         if (bookmarks.size() > 0) {
-            for (String bookmark : bookmarks) {
-                mBookmarksArrayAdapter.add(bookmark);
-            }
+            mBookmarksArrayAdapter.addAll(bookmarks);
         } else {
             String noBookmarks = getResources().getText(R.string.no_boomarks).toString();
             mBookmarksArrayAdapter.add(noBookmarks);
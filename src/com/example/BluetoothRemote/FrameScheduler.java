@@ -0,0 +1,98 @@
+package com.example.BluetoothRemote;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.example.CommandQueue;
+
+/**
+ * Releases the outbound queue's pending motion once per display frame,
+ * so all the cursor and scroll motion produced during a frame leaves in
+ * a single write. On Jelly Bean and later the release is tied to vsync
+ * through {@link Choreographer}; older releases fall back to a Handler
+ * posting at the nominal frame interval.
+ *
+ * {@link #requestFrame()} may be called from any thread.
+ */
+class FrameScheduler implements Runnable {
+    // Fallback frame interval in milliseconds, 60 Hz
+    private static final long FRAME_INTERVAL = 16;
+
+    private final CommandQueue mQueue;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final VsyncCallback mVsyncCallback;
+    private boolean mScheduled = false;
+
+    // Runs on the main thread to post the frame callback
+    private final Runnable mSchedule = new Runnable() {
+        public void run() {
+            schedule();
+        }
+    };
+
+    /**
+     * @param queue  The queue whose motion is gated until each frame
+     */
+    public FrameScheduler(CommandQueue queue) {
+        mQueue = queue;
+        // Choreographer does not exist before API 16, so keep the class
+        // that implements its callback from being loaded there
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mVsyncCallback = new VsyncCallback(this);
+        } else {
+            mVsyncCallback = null;
+        }
+    }
+
+    /**
+     * Ask for the pending motion to be released at the next frame. Calls
+     * made before that frame arrives are folded into it.
+     */
+    public void requestFrame() {
+        synchronized (this) {
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            schedule();
+        } else {
+            mHandler.post(mSchedule);
+        }
+    }
+
+    private void schedule() {
+        if (mVsyncCallback != null) {
+            mVsyncCallback.post();
+        } else {
+            mHandler.postDelayed(this, FRAME_INTERVAL);
+        }
+    }
+
+    /**
+     * The frame has arrived; let the sender take the pending motion.
+     */
+    public void run() {
+        synchronized (this) {
+            mScheduled = false;
+        }
+        mQueue.releaseMotion();
+    }
+
+    private static class VsyncCallback implements Choreographer.FrameCallback {
+        private final Runnable mFrame;
+
+        VsyncCallback(Runnable frame) {
+            mFrame = frame;
+        }
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        public void doFrame(long frameTimeNanos) {
+            mFrame.run();
+        }
+    }
+}
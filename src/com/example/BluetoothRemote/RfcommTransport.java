@@ -0,0 +1,84 @@
+package com.example.BluetoothRemote;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import com.example.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Carries the command stream over a Bluetooth RFCOMM socket to the
+ * BluetoothServer's service record.
+ */
+public class RfcommTransport implements Transport {
+    // Unique UUID for this application
+    private static final UUID MY_UUID_SECURE =
+            UUID.fromString("002b8631-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothDevice mDevice;
+    private volatile BluetoothSocket mSocket;
+    // Set by close(), which may come before connect() has made the socket
+    private volatile boolean mClosed;
+
+    /**
+     * @param adapter  The local adapter, whose discovery is cancelled before connecting
+     * @param device   The BluetoothDevice to connect
+     */
+    public RfcommTransport(BluetoothAdapter adapter, BluetoothDevice device) {
+        mAdapter = adapter;
+        mDevice = device;
+    }
+
+    public void connect() throws IOException {
+        // Get a BluetoothSocket for a connection with the
+        // given BluetoothDevice
+        BluetoothSocket socket = mDevice.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+        mSocket = socket;
+        if (mClosed) {
+            socket.close();
+            throw new IOException("Transport closed");
+        }
+
+        // Always cancel discovery because it will slow down a connection
+        if (mAdapter != null) mAdapter.cancelDiscovery();
+
+        // This is a blocking call and will only return on a
+        // successful connection or an exception
+        socket.connect();
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    public void close() throws IOException {
+        mClosed = true;
+        BluetoothSocket socket = mSocket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public String toString() {
+        return "RFCOMM " + mDevice.getAddress();
+    }
+}
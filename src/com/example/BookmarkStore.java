@@ -0,0 +1,213 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps bookmarks in memory, in the order they were added, and records
+ * every change by appending one line to a log file: "+url" for an add and
+ * "-url" for a delete. Adding, deleting and looking up a bookmark take
+ * constant time, whatever the number of bookmarks, and only the changed
+ * bookmark is written.
+ *
+ * Loading replays the log. Once it holds more than twice as many lines as
+ * there are bookmarks, plus {@link #COMPACT_SLACK}, it is compacted: the
+ * bookmarks are written to a temporary file that is synced to disk and
+ * renamed over the log, so the log is either the old one or the complete
+ * new one. A line left unfinished by a crash is ignored and dropped by the
+ * next compaction.
+ *
+ * Thread safe.
+ */
+public final class BookmarkStore {
+	/** Lines the log may hold beyond twice the bookmarks before it is compacted */
+	public static final int COMPACT_SLACK = 64;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final Set<String> bookmarks = new LinkedHashSet<String>();
+	// Lines in the log, including those undone by later ones
+	private int records = 0;
+
+	/**
+	 * @param file  The log; it need not exist yet
+	 */
+	public BookmarkStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replaces the bookmarks in memory with those in the log, compacting it
+	 * if it has grown too long or ends in an unfinished line.
+	 */
+	public synchronized void load() throws IOException {
+		bookmarks.clear();
+		records = 0;
+		String log;
+		try {
+			log = new String(readFully(new FileInputStream(file)), UTF_8);
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		int start = 0;
+		int end;
+		while ((end = log.indexOf('\n', start)) >= 0) {
+			if (end > start) {
+				char change = log.charAt(start);
+				String url = log.substring(start + 1, end);
+				if (change == '+') {
+					bookmarks.add(url);
+				} else if (change == '-') {
+					bookmarks.remove(url);
+				}
+			}
+			records++;
+			start = end + 1;
+		}
+		if (start < log.length() || needsCompaction()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Adds each line of a plain list of URLs, such as the bookmarks.txt
+	 * written by earlier versions, that is not already a bookmark.
+	 * @return The number of bookmarks added
+	 */
+	public synchronized int importLines(File lines) throws IOException {
+		String text = new String(readFully(new FileInputStream(lines)), UTF_8);
+		int added = 0;
+		for (String url : text.split("\r?\n")) {
+			if (url.length() > 0 && add(url)) {
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Adds a bookmark at the end of the list.
+	 * @return False if it was already a bookmark
+	 * @throws IllegalArgumentException if the URL contains a line break
+	 */
+	public synchronized boolean add(String url) throws IOException {
+		if (url.indexOf('\n') >= 0 || url.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("line break in bookmark");
+		}
+		if (!bookmarks.add(url)) {
+			return false;
+		}
+		try {
+			append('+', url);
+		} catch (IOException e) {
+			bookmarks.remove(url);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes a bookmark.
+	 * @return False if it was not a bookmark
+	 */
+	public synchronized boolean remove(String url) throws IOException {
+		if (!bookmarks.contains(url)) {
+			return false;
+		}
+		append('-', url);
+		bookmarks.remove(url);
+		if (needsCompaction()) {
+			compact();
+		}
+		return true;
+	}
+
+	public synchronized boolean contains(String url) {
+		return bookmarks.contains(url);
+	}
+
+	/**
+	 * Returns the bookmarks in the order they were added.
+	 */
+	public synchronized List<String> getAll() {
+		return new ArrayList<String>(bookmarks);
+	}
+
+	public synchronized int size() {
+		return bookmarks.size();
+	}
+
+	/**
+	 * Rewrites the log with one line per bookmark and atomically replaces
+	 * the old one with it.
+	 */
+	public synchronized void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		// Truncates anything an interrupted compaction left behind
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			for (String url : bookmarks) {
+				buffer.write('+');
+				buffer.write(url.getBytes(UTF_8));
+				buffer.write('\n');
+			}
+			buffer.writeTo(out);
+			// On disk before the rename, or a crash could leave an empty log
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("could not replace " + file);
+		}
+		records = bookmarks.size();
+	}
+
+	private boolean needsCompaction() {
+		return records > 2 * bookmarks.size() + COMPACT_SLACK;
+	}
+
+	private void append(char change, String url) throws IOException {
+		byte[] bytes = url.getBytes(UTF_8);
+		byte[] line = new byte[bytes.length + 2];
+		line[0] = (byte) change;
+		System.arraycopy(bytes, 0, line, 1, bytes.length);
+		line[line.length - 1] = '\n';
+		OutputStream out = new FileOutputStream(file, true);
+		try {
+			// One write, so a crash tears at most this line
+			out.write(line);
+		} finally {
+			out.close();
+		}
+		records++;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
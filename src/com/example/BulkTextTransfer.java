@@ -0,0 +1,207 @@
+package com.example;
+
+import java.util.ArrayDeque;
+
+/**
+ * Sends long text, such as a clipboard paste, as a stream of TEXT_CHUNK
+ * commands instead of one huge TYPE. At most {@link #WINDOW} chunks are
+ * waiting for their TEXT_CHUNK_ACK at any time, so the transfer never
+ * holds more than a few kilobytes of the link and clicks or moves queued
+ * meanwhile go out between chunks. The next chunk is queued as soon as
+ * the receiver acknowledges one, which paces the transfer to whichever
+ * of the link and the receiver is slower.
+ *
+ * Each transfer holds its place in the queue, see
+ * {@link CommandQueue#offerTransfer()}, so input queued after it is
+ * performed after its last chunk rather than in between. One transfer runs
+ * at a time; one started meanwhile waits for those before it to finish.
+ * Thread safe. The listener is called with the transfer's lock held, from
+ * whichever thread started, acknowledged or cancelled it.
+ */
+public final class BulkTextTransfer {
+	/** Characters per chunk; a chunk is shortened rather than split a surrogate pair */
+	public static final int CHUNK_LENGTH = 256;
+	/** Chunks that may be sent but not yet acknowledged */
+	public static final int WINDOW = 2;
+
+	/**
+	 * Reports how a transfer is going.
+	 */
+	public interface Listener {
+		/**
+		 * @param acknowledged  Characters the receiver has typed so far
+		 * @param total         Characters in the whole transfer
+		 */
+		void onProgress(int transfer, int acknowledged, int total);
+
+		/**
+		 * @param completed  True if every chunk was acknowledged, false if
+		 *                   the transfer was cancelled or could not be queued
+		 */
+		void onFinished(int transfer, boolean completed);
+	}
+
+	/** A transfer started while another one runs. */
+	private static final class Waiting {
+		final int transfer;
+		String text; // null once cancelled
+
+		Waiting(int transfer, String text) {
+			this.transfer = transfer;
+			this.text = text;
+		}
+	}
+
+	private final CommandQueue queue;
+	private final Listener listener;
+	private final ArrayDeque<Waiting> waiting = new ArrayDeque<Waiting>();
+	private int nextTransfer = 1;
+
+	// The transfer in progress; text is null when there is none
+	private String text;
+	private int transfer;
+	private int position;       // characters queued so far
+	private int nextSequence;   // number of the next chunk to queue
+	private int ackedSequence;  // number of the next chunk to be acknowledged
+	private final int[] chunkEnds = new int[WINDOW];
+
+	/**
+	 * @param queue     Where chunks are offered
+	 * @param listener  Receives progress and completion
+	 */
+	public BulkTextTransfer(CommandQueue queue, Listener listener) {
+		this.queue = queue;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts sending text once the transfers started before it have
+	 * finished. If the queue has no room for it, the listener is told at
+	 * once that it did not complete.
+	 * @return The transfer's number, as reported to the listener
+	 */
+	public synchronized int start(String text) {
+		int transfer = nextTransfer++;
+		if (!queue.offerTransfer()) {
+			listener.onFinished(transfer, false);
+		} else if (this.text != null || !waiting.isEmpty()) {
+			waiting.add(new Waiting(transfer, text));
+		} else {
+			begin(transfer, text);
+		}
+		return transfer;
+	}
+
+	/**
+	 * Handles a TEXT_CHUNK_ACK from the receiver. Acknowledgements for an
+	 * earlier transfer, or out of order, are ignored.
+	 */
+	public synchronized void onAck(int transfer, int sequence) {
+		if (text == null || transfer != this.transfer || sequence != ackedSequence) {
+			return;
+		}
+		int acknowledged = chunkEnds[sequence % WINDOW];
+		ackedSequence++;
+		listener.onProgress(transfer, acknowledged, text.length());
+		if (acknowledged == text.length()) {
+			finish(true);
+		} else {
+			pump();
+		}
+	}
+
+	/**
+	 * Stops every transfer, running or waiting. Chunks already queued are
+	 * still sent.
+	 */
+	public synchronized void cancel() {
+		for (Waiting w : waiting) {
+			cancel(w);
+		}
+		if (text != null) {
+			finish(false);
+		}
+	}
+
+	/**
+	 * Stops one transfer, running or waiting. Chunks already queued are
+	 * still sent. Does nothing if the transfer has already finished.
+	 */
+	public synchronized void cancel(int transfer) {
+		if (text != null && transfer == this.transfer) {
+			finish(false);
+			return;
+		}
+		for (Waiting w : waiting) {
+			if (w.transfer == transfer) {
+				cancel(w);
+			}
+		}
+	}
+
+	public synchronized boolean isActive() {
+		return text != null;
+	}
+
+	private void cancel(Waiting w) {
+		if (w.text != null) {
+			// Its place in the queue is given up when its turn comes
+			w.text = null;
+			listener.onFinished(w.transfer, false);
+		}
+	}
+
+	private void begin(int transfer, String text) {
+		this.text = text;
+		this.transfer = transfer;
+		position = 0;
+		nextSequence = 0;
+		ackedSequence = 0;
+		if (text.length() == 0) {
+			finish(true);
+		} else {
+			pump();
+		}
+	}
+
+	/**
+	 * Queues chunks until the window is full or the text is used up.
+	 */
+	private void pump() {
+		int length = text.length();
+		while (position < length && nextSequence - ackedSequence < WINDOW) {
+			int end = Math.min(length, position + CHUNK_LENGTH);
+			if (end < length && Character.isHighSurrogate(text.charAt(end - 1))) {
+				end--;
+			}
+			if (!queue.offer(RemoteValues.TEXT_CHUNK, transfer, nextSequence, text, position, end)) {
+				// With nothing in flight no acknowledgement will come to retry on
+				if (nextSequence == ackedSequence) {
+					finish(false);
+				}
+				return;
+			}
+			chunkEnds[nextSequence % WINDOW] = end;
+			position = end;
+			nextSequence++;
+		}
+	}
+
+	/**
+	 * Ends the running transfer, releasing the input queued after it, and
+	 * begins the next one that is still wanted.
+	 */
+	private void finish(boolean completed) {
+		text = null;
+		queue.endTransfer();
+		listener.onFinished(transfer, completed);
+		Waiting next;
+		while (text == null && (next = waiting.poll()) != null) {
+			if (next.text == null) {
+				queue.endTransfer();
+			} else {
+				begin(next.transfer, next.text);
+			}
+		}
+	}
+}
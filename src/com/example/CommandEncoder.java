@@ -0,0 +1,267 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes commands as length-prefixed frames into a reusable byte buffer.
+ * One encoder is meant to live as long as a connection, so encoding a
+ * mouse move or a click only writes into memory that already exists. The
+ * buffer only grows when a TYPE command carries more text than has been
+ * seen before.
+ *
+ * With batching enabled, see {@link #setBatchLimits(int, long)}, frames
+ * appended between writes are wrapped in BATCH frames. A batch is closed
+ * once it holds the given number of bytes or has been open for the given
+ * time; {@link #isBatchFull()} tells a caller draining a queue when to
+ * stop and write. A batch that ends up with a single frame is left
+ * unwrapped.
+ *
+ * With text compression enabled, a TEXT_CHUNK whose text deflates to
+ * fewer bytes is written as TEXT_CHUNK_DEFLATE instead. Call
+ * {@link #release()} when done to free the compressor's native memory.
+ *
+ * Not thread safe; callers serialize access.
+ */
+public final class CommandEncoder {
+	public static final int DEFAULT_CAPACITY = 1024;
+	/** Batch payload limit the app uses; small enough not to delay a frame on RFCOMM */
+	public static final int MAX_BATCH_BYTES = 512;
+
+	// Text chunks shorter than this, in UTF-8 bytes, are never compressed
+	private static final int MIN_COMPRESS_LENGTH = 64;
+
+	private byte[] buffer;
+	private int position = 0;
+
+	// Batching is off while maxBatchBytes is 0
+	private int maxBatchBytes = 0;
+	private long maxBatchNanos = 0;
+	// The open batch's frames start at batchStart; -1 when none is open
+	private int batchStart = -1;
+	private int batchFrames = 0;
+	private long batchOpened;
+
+	private boolean compressText = false;
+	private Deflater deflater;
+	// UTF-8 and compressed forms of the chunk being considered for compression
+	private byte[] plainScratch;
+	private byte[] deflatedScratch;
+
+	public CommandEncoder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public CommandEncoder(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Appends a command given as primitive fields.
+	 * @param text The text for a TYPE command, ignored otherwise
+	 */
+	public void put(int command, int parameter1, int parameter2, CharSequence text) {
+		if (command == RemoteValues.TEXT_CHUNK && compressText
+				&& putDeflated(parameter1, parameter2, text)) {
+			return;
+		}
+		int length = RemoteCommandCodec.encodedLength(command, parameter1, parameter2, text);
+		beginFrame(length);
+		position = RemoteCommandCodec.encode(command, parameter1, parameter2, text,
+				buffer, position);
+	}
+
+	/**
+	 * Makes room for a frame of the given length, opening or closing a
+	 * batch as needed.
+	 */
+	private void beginFrame(int length) {
+		if (maxBatchBytes > 0) {
+			if (batchStart >= 0 && position - batchStart + length > maxBatchBytes) {
+				closeBatch();
+			}
+			if (batchStart < 0) {
+				batchStart = position;
+				batchFrames = 0;
+				batchOpened = System.nanoTime();
+			}
+			batchFrames++;
+		}
+		ensureCapacity(length);
+	}
+
+	/**
+	 * Writes a TEXT_CHUNK as TEXT_CHUNK_DEFLATE if that is shorter.
+	 * @return False, having written nothing, if compression does not pay
+	 */
+	private boolean putDeflated(int transfer, int sequence, CharSequence text) {
+		int plainLength = RemoteCommandCodec.utf8Length(text);
+		if (plainLength < MIN_COMPRESS_LENGTH) {
+			return false;
+		}
+		if (plainScratch == null || plainScratch.length < plainLength) {
+			plainScratch = new byte[plainLength];
+			deflatedScratch = new byte[plainLength];
+		}
+		RemoteCommandCodec.putUtf8(plainScratch, 0, text, 0, text.length());
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
+		deflater.reset();
+		deflater.setInput(plainScratch, 0, plainLength);
+		deflater.finish();
+		// Only room for a result shorter than the text; anything else is not worth it
+		int deflatedLength = deflater.deflate(deflatedScratch, 0, plainLength - 1);
+		if (!deflater.finished()) {
+			return false;
+		}
+
+		int frameLength = RemoteCommandCodec.OPCODE_LENGTH
+				+ RemoteCommandCodec.varintLength(transfer)
+				+ RemoteCommandCodec.varintLength(sequence) + deflatedLength;
+		beginFrame(RemoteCommandCodec.varintLength(frameLength) + frameLength);
+		position = RemoteCommandCodec.putVarint(buffer, position, frameLength);
+		buffer[position++] = (byte) RemoteValues.TEXT_CHUNK_DEFLATE;
+		position = RemoteCommandCodec.putVarint(buffer, position, transfer);
+		position = RemoteCommandCodec.putVarint(buffer, position, sequence);
+		System.arraycopy(deflatedScratch, 0, buffer, position, deflatedLength);
+		position += deflatedLength;
+		return true;
+	}
+
+	/**
+	 * Appends frames that are already encoded, such as a compiled macro's.
+	 * They are never put in a batch, since they may hold batches themselves.
+	 */
+	public void putFrames(byte[] frames, int offset, int length) {
+		closeBatch();
+		ensureCapacity(length);
+		System.arraycopy(frames, offset, buffer, position, length);
+		position += length;
+	}
+
+	public void put(RemoteCommand rcm) {
+		put(rcm.command, rcm.parameter1, rcm.parameter2, rcm.string1);
+	}
+
+	public void putCommand(int command) {
+		put(command, 0, 0, null);
+	}
+
+	public void putMove(int dx, int dy) {
+		put(RemoteValues.MOVE_MOUSE_BY, dx, dy, null);
+	}
+
+	public void putScroll(int amount) {
+		put(RemoteValues.MOUSE_SCROLL, amount, 0, null);
+	}
+
+	/**
+	 * Chooses whether TEXT_CHUNK text is compressed when that makes it
+	 * shorter. Off by default.
+	 */
+	public void setCompressText(boolean compress) {
+		compressText = compress;
+	}
+
+	/**
+	 * Frees the compressor, if one was used. The encoder stays usable.
+	 */
+	public void release() {
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	/**
+	 * Turns batching on or off.
+	 * @param maxBytes  The largest batch payload, or 0 to stop batching
+	 * @param maxNanos  How long a batch may stay open before
+	 *                  {@link #isBatchFull()} reports it full, or 0 for no limit
+	 */
+	public void setBatchLimits(int maxBytes, long maxNanos) {
+		if (maxBytes < 0 || maxBytes > RemoteCommandCodec.MAX_FRAME_LENGTH - 1 || maxNanos < 0) {
+			throw new IllegalArgumentException(maxBytes + " bytes, " + maxNanos + " ns");
+		}
+		closeBatch();
+		maxBatchBytes = maxBytes;
+		maxBatchNanos = maxNanos;
+	}
+
+	/**
+	 * Returns true if the open batch has reached its size or time limit,
+	 * so the caller should write rather than append more.
+	 */
+	public boolean isBatchFull() {
+		if (batchStart < 0) {
+			return false;
+		}
+		return position - batchStart >= maxBatchBytes
+				|| (maxBatchNanos > 0 && System.nanoTime() - batchOpened >= maxBatchNanos);
+	}
+
+	/**
+	 * Writes everything appended since the last reset to out and clears the
+	 * buffer. The stream is not flushed.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		closeBatch();
+		try {
+			out.write(buffer, 0, position);
+		} finally {
+			position = 0;
+		}
+	}
+
+	public void reset() {
+		position = 0;
+		batchStart = -1;
+	}
+
+	/**
+	 * Returns the number of encoded bytes waiting in the buffer.
+	 */
+	public int size() {
+		return position;
+	}
+
+	/**
+	 * Returns the backing array. Only the first {@link #size()} bytes are
+	 * valid, and an open batch is only wrapped by {@link #writeTo}.
+	 */
+	public byte[] array() {
+		return buffer;
+	}
+
+	/**
+	 * Wraps the frames of the open batch, if it holds more than one, in a
+	 * BATCH frame by shifting them up to make room for its header.
+	 */
+	private void closeBatch() {
+		if (batchStart < 0) {
+			return;
+		}
+		if (batchFrames > 1) {
+			int payloadLength = position - batchStart;
+			int frameLength = RemoteCommandCodec.OPCODE_LENGTH + payloadLength;
+			int headerLength = RemoteCommandCodec.varintLength(frameLength)
+					+ RemoteCommandCodec.OPCODE_LENGTH;
+			ensureCapacity(headerLength);
+			System.arraycopy(buffer, batchStart, buffer, batchStart + headerLength, payloadLength);
+			int offset = RemoteCommandCodec.putVarint(buffer, batchStart, frameLength);
+			buffer[offset] = (byte) RemoteValues.BATCH;
+			position += headerLength;
+		}
+		batchStart = -1;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (position + needed > buffer.length) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, position + needed)];
+			System.arraycopy(buffer, 0, grown, 0, position);
+			buffer = grown;
+		}
+	}
+}
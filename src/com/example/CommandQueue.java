@@ -0,0 +1,621 @@
+package com.example;
+
+/**
+ * Bounded queue of commands waiting to be written to the connection.
+ * Commands are stored as primitive fields in preallocated slots, so
+ * queueing a command does not allocate. Input threads offer commands and
+ * return straight away; a single sender thread takes them off and does
+ * the blocking write.
+ *
+ * Commands are split into three priority lanes, see {@link #priorityOf(int)}:
+ * <ul>
+ * <li>Discrete input (clicks, ENTER, BACKSPACE, TYPE, NEW_TAB) waits in a
+ *     FIFO and is always taken first.</li>
+ * <li>Continuous motion (MOVE_MOUSE_BY, MOUSE_SCROLL, MOUSE_SCROLL_PRECISE)
+ *     is coalesced into a single pending delta. A move or scroll offered
+ *     while one of the same kind is pending is added to it, so a burst of
+ *     motion leaves the queue as one summed delta rather than a delayed
+ *     replay.</li>
+ * <li>CHECK_CONNECTION probes are taken only when nothing else waits, and
+ *     a new probe replaces one that has not been sent.</li>
+ * </ul>
+ * Motion that happened before a discrete command, or before motion of
+ * another kind, is moved into the FIFO ahead of it. A click therefore never
+ * waits behind queued cursor motion, yet the cursor is where the user left
+ * it when the click lands.
+ *
+ * With motion gated, see {@link #setMotionGated(boolean)}, pending motion
+ * is held back until {@link #releaseMotion()} is called, typically once
+ * per display frame. Everything that moved during the frame then leaves
+ * in one write, while clicks and other discrete input are still taken
+ * immediately.
+ *
+ * A bulk text transfer holds its place in the FIFO, see
+ * {@link #offerTransfer()}. Its TEXT_CHUNKs are queued ahead of that place
+ * as they are produced, while input offered after the transfer began
+ * waits behind it until {@link #endTransfer()}. Text typed or keys pressed
+ * during a long paste are therefore performed after it, in order. Motion
+ * is not held while nothing but a transfer is ahead of it, so the cursor
+ * still moves during a paste.
+ *
+ * When the FIFO is full the configured policy decides what is lost:
+ * {@link #FULL_DROP_NEWEST} rejects the offered command, while
+ * {@link #FULL_DROP_OLDEST} evicts the discrete commands that have waited
+ * longest. Motion is never evicted, since every later move would then
+ * leave the cursor in the wrong place; once the command between two moves
+ * is evicted they are merged instead. Nor are a transfer's place, its
+ * chunks or encoded frames, since a transfer or macro would go wrong
+ * without them. With nothing left to evict the offered command is
+ * rejected. Either way the loss is counted in {@link #getDroppedCount()}.
+ *
+ * Frames encoded ahead of time, such as a macro's, are queued as one
+ * {@link #ENCODED_FRAMES} entry in the FIFO, see {@link #offerFrames(byte[])},
+ * so they keep their order with the input around them.
+ *
+ * Text is copied into a character buffer owned by its FIFO slot, and
+ * {@link #take(RemoteCommand, StringBuilder, long)} copies it out into
+ * the caller's buffer, so typed text passes through the queue without a
+ * String being created for it.
+ */
+public final class CommandQueue {
+	public static final int DEFAULT_CAPACITY = 64;
+
+	// Policies for offering to a full queue
+	public static final int FULL_DROP_NEWEST = 0;
+	public static final int FULL_DROP_OLDEST = 1;
+
+	/** Taken in place of a command for frames from {@link #offerFrames(byte[])}; not an opcode */
+	public static final int ENCODED_FRAMES = Integer.MIN_VALUE + 1;
+
+	// Priority lanes, highest first
+	public static final int PRIORITY_INPUT = 0;
+	public static final int PRIORITY_MOTION = 1;
+	public static final int PRIORITY_PROBE = 2;
+
+	// A slot's text buffer is dropped rather than kept if it grew past this
+	private static final int MAX_RETAINED_TEXT = 4096;
+	// Held in a FIFO slot as the place of a bulk text transfer; not an opcode
+	private static final int TRANSFER = Integer.MIN_VALUE;
+
+	// FIFO of discrete commands, and of motion flushed ahead of them
+	private final int[] commands;
+	private final int[] parameters1;
+	private final int[] parameters2;
+	// Text of each slot; created on first use and reused
+	private final StringBuilder[] texts;
+	// Frames of each ENCODED_FRAMES slot
+	private final byte[][] frames;
+	// Frames of the ENCODED_FRAMES entry taken last
+	private byte[] takenFrames;
+	private final int policy;
+	private int head = 0; // next slot to take
+	private int count = 0;
+	// FIFO slots holding the place of a transfer
+	private int transfers = 0;
+
+	// Pending coalesced motion
+	private boolean motionPending = false;
+	private boolean motionGated = false;
+	private boolean motionReleased = false;
+	private int motionCommand;
+	private int motionParameter1;
+	private int motionParameter2;
+
+	// Pending connection probe
+	private boolean probePending = false;
+	private int probeParameter1;
+	private int probeParameter2;
+
+	private boolean closed = false;
+	private long droppedCount = 0;
+	private long mergedCount = 0;
+
+	public CommandQueue() {
+		this(DEFAULT_CAPACITY, FULL_DROP_NEWEST);
+	}
+
+	/**
+	 * @param capacity The number of discrete commands that can wait at once
+	 * @param policy   {@link #FULL_DROP_NEWEST} or {@link #FULL_DROP_OLDEST}
+	 */
+	public CommandQueue(int capacity, int policy) {
+		if (capacity < 2) {
+			throw new IllegalArgumentException("capacity " + capacity);
+		}
+		if (policy != FULL_DROP_NEWEST && policy != FULL_DROP_OLDEST) {
+			throw new IllegalArgumentException("policy " + policy);
+		}
+		commands = new int[capacity];
+		parameters1 = new int[capacity];
+		parameters2 = new int[capacity];
+		texts = new StringBuilder[capacity];
+		frames = new byte[capacity][];
+		this.policy = policy;
+	}
+
+	/**
+	 * Returns the lane a command is queued in.
+	 * @return {@link #PRIORITY_INPUT}, {@link #PRIORITY_MOTION} or {@link #PRIORITY_PROBE}
+	 */
+	public static int priorityOf(int command) {
+		switch (command) {
+		case RemoteValues.MOVE_MOUSE_BY:
+		case RemoteValues.MOUSE_SCROLL:
+		case RemoteValues.MOUSE_SCROLL_PRECISE:
+			return PRIORITY_MOTION;
+		case RemoteValues.CHECK_CONNECTION:
+			return PRIORITY_PROBE;
+		default:
+			return PRIORITY_INPUT;
+		}
+	}
+
+	/**
+	 * Adds a command without blocking.
+	 * @return False if the command was dropped because the queue is full
+	 *         under {@link #FULL_DROP_NEWEST}, or because it is closed
+	 */
+	public boolean offer(int command, int parameter1, int parameter2, String text) {
+		return offer(command, parameter1, parameter2, text, 0, text == null ? 0 : text.length());
+	}
+
+	/**
+	 * Adds a command carrying the characters text[start, end) without blocking.
+	 * The characters are copied, so text may change once this returns.
+	 * @return False if the command was dropped because the queue is full
+	 *         under {@link #FULL_DROP_NEWEST}, or because it is closed
+	 */
+	public synchronized boolean offer(int command, int parameter1, int parameter2,
+			CharSequence text, int start, int end) {
+		if (closed) {
+			return false;
+		}
+		boolean wasReady = isReady();
+		switch (priorityOf(command)) {
+		case PRIORITY_PROBE:
+			probePending = true;
+			probeParameter1 = parameter1;
+			probeParameter2 = parameter2;
+			break;
+		case PRIORITY_INPUT:
+			if (command == RemoteValues.TEXT_CHUNK && transfers > 0) {
+				// Ahead of the transfer's place, and of the input held behind it
+				if (!makeRoom(1)) {
+					return false;
+				}
+				insert(firstTransfer(), command, parameter1, parameter2, text, start, end);
+				break;
+			}
+			if (!makeRoom(motionPending ? 2 : 1)) {
+				return false;
+			}
+			if (motionPending) {
+				flushMotion();
+			}
+			append(command, parameter1, parameter2, text, start, end);
+			break;
+		default:
+			if (motionPending && motionCommand == command) {
+				motionParameter1 += parameter1;
+				motionParameter2 += parameter2;
+				mergedCount++;
+				break;
+			}
+			if (motionPending && !flushMotion()) {
+				return false;
+			}
+			motionPending = true;
+			motionCommand = command;
+			motionParameter1 = parameter1;
+			motionParameter2 = parameter2;
+			break;
+		}
+		if (!wasReady && isReady()) {
+			notify();
+		}
+		return true;
+	}
+
+	/**
+	 * Adds ready-made frames as one discrete command, without blocking.
+	 * {@link #take} returns them as {@link #ENCODED_FRAMES}, after which
+	 * {@link #getTakenFrames()} gives the array; it is not copied, so do not
+	 * change it.
+	 * @return False if the frames were dropped because the queue is full
+	 *         under {@link #FULL_DROP_NEWEST}, or because it is closed
+	 */
+	public synchronized boolean offerFrames(byte[] encoded) {
+		if (closed || !makeRoom(motionPending ? 2 : 1)) {
+			return false;
+		}
+		boolean wasReady = isReady();
+		if (motionPending) {
+			flushMotion();
+		}
+		append(ENCODED_FRAMES, encoded.length, 0, null, 0, 0);
+		frames[(head + count - 1) % commands.length] = encoded;
+		if (!wasReady && isReady()) {
+			notify();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the frames of the {@link #ENCODED_FRAMES} command taken last.
+	 */
+	public synchronized byte[] getTakenFrames() {
+		return takenFrames;
+	}
+
+	/**
+	 * Holds a place for a bulk text transfer after everything offered so
+	 * far. Until {@link #endTransfer()} removes it, TEXT_CHUNKs are queued
+	 * ahead of it and other input waits behind it. Places of several
+	 * transfers are kept in order; chunks always go ahead of the first.
+	 * @return False if there was no room, or the queue is closed
+	 */
+	public synchronized boolean offerTransfer() {
+		if (closed || !makeRoom(motionPending ? 2 : 1)) {
+			return false;
+		}
+		if (motionPending) {
+			flushMotion();
+		}
+		append(TRANSFER, 0, 0, null, 0, 0);
+		transfers++;
+		return true;
+	}
+
+	/**
+	 * Removes the first transfer's place, releasing the input held behind it.
+	 */
+	public synchronized void endTransfer() {
+		if (transfers == 0) {
+			return;
+		}
+		boolean wasReady = isReady();
+		remove(firstTransfer());
+		transfers--;
+		if (!wasReady && isReady()) {
+			notify();
+		}
+	}
+
+	/**
+	 * Chooses whether pending motion waits for {@link #releaseMotion()}
+	 * before it can be taken. Off by default.
+	 */
+	public synchronized void setMotionGated(boolean gated) {
+		motionGated = gated;
+		if (!gated && motionPending) {
+			notify();
+		}
+	}
+
+	public synchronized boolean isMotionGated() {
+		return motionGated;
+	}
+
+	/**
+	 * Lets the pending motion, if there is any, be taken while motion is
+	 * gated. Motion offered later waits for the next release.
+	 */
+	public synchronized void releaseMotion() {
+		if (motionPending && !motionReleased) {
+			boolean wasReady = isReady();
+			motionReleased = true;
+			if (!wasReady) {
+				notify();
+			}
+		}
+	}
+
+	/**
+	 * Removes the highest priority command, waiting up to timeoutMillis for
+	 * one to arrive. A timeout of zero never waits.
+	 * @param into Receives the command's fields
+	 * @return True if a command was copied into into
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public boolean take(RemoteCommand into, long timeoutMillis) throws InterruptedException {
+		return take(into, null, timeoutMillis);
+	}
+
+	/**
+	 * Removes the highest priority command like {@link #take(RemoteCommand, long)},
+	 * but copies its text into a caller-owned buffer instead of a new String.
+	 * @param into  Receives the command's fields; its string1 is set to null
+	 * @param text  Receives the command's text, or null to get it in into.string1
+	 * @return True if a command was copied into into
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public synchronized boolean take(RemoteCommand into, StringBuilder text, long timeoutMillis)
+			throws InterruptedException {
+		if (text != null) {
+			text.setLength(0);
+		}
+		if (!isReady() && timeoutMillis > 0 && !closed) {
+			// nanoTime rather than the wall clock, which can jump
+			long remaining = timeoutMillis * 1000000;
+			long deadline = System.nanoTime() + remaining;
+			while (!isReady() && remaining > 0 && !closed) {
+				wait(remaining / 1000000, (int) (remaining % 1000000));
+				remaining = deadline - System.nanoTime();
+			}
+		}
+		if (isInputReady()) {
+			into.command = commands[head];
+			into.parameter1 = parameters1[head];
+			into.parameter2 = parameters2[head];
+			StringBuilder slot = texts[head];
+			if (slot == null || slot.length() == 0) {
+				into.string1 = null;
+			} else if (text != null) {
+				text.append(slot);
+				into.string1 = null;
+			} else {
+				into.string1 = slot.toString();
+			}
+			if (into.command == ENCODED_FRAMES) {
+				takenFrames = frames[head];
+			}
+			releaseText(head);
+			head = (head + 1) % commands.length;
+			count--;
+		} else if (isMotionReady()) {
+			into.command = motionCommand;
+			into.parameter1 = motionParameter1;
+			into.parameter2 = motionParameter2;
+			into.string1 = null;
+			motionPending = false;
+			motionReleased = false;
+		} else if (probePending) {
+			into.command = RemoteValues.CHECK_CONNECTION;
+			into.parameter1 = probeParameter1;
+			into.parameter2 = probeParameter2;
+			into.string1 = null;
+			probePending = false;
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Discards every waiting command.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < texts.length; i++) {
+			releaseText(i);
+		}
+		head = 0;
+		count = 0;
+		transfers = 0;
+		motionPending = false;
+		motionReleased = false;
+		probePending = false;
+	}
+
+	/**
+	 * Rejects all further offers and wakes a waiting sender.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Accepts offers again after {@link #close()}, starting empty.
+	 */
+	public synchronized void open() {
+		clear();
+		closed = false;
+	}
+
+	public synchronized int size() {
+		return count - transfers + (motionPending ? 1 : 0) + (probePending ? 1 : 0);
+	}
+
+	/**
+	 * Returns the number of commands {@link #take} could return right now,
+	 * which leaves out motion held back for the next release and input
+	 * held behind a transfer.
+	 */
+	public synchronized int readyCount() {
+		return firstTransfer() + (isMotionReady() ? 1 : 0) + (probePending ? 1 : 0);
+	}
+
+	public int capacity() {
+		return commands.length;
+	}
+
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Returns the number of offered commands that were merged into a
+	 * waiting command instead of being queued separately.
+	 */
+	public synchronized long getMergedCount() {
+		return mergedCount;
+	}
+
+	/**
+	 * Returns true if {@link #take} would return a command without waiting.
+	 */
+	private boolean isReady() {
+		return isInputReady() || isMotionReady() || probePending;
+	}
+
+	private boolean isInputReady() {
+		return count > 0 && commands[head] != TRANSFER;
+	}
+
+	/**
+	 * Pending motion happened after everything in the FIFO, so it waits
+	 * while input is held behind a transfer.
+	 */
+	private boolean isMotionReady() {
+		return motionPending && (!motionGated || motionReleased)
+				&& (transfers == 0 || firstTransfer() + transfers == count);
+	}
+
+	/**
+	 * Returns the position in the FIFO of the first transfer's place, or
+	 * count if there is none.
+	 */
+	private int firstTransfer() {
+		if (transfers == 0) {
+			return count;
+		}
+		int i = 0;
+		while (commands[(head + i) % commands.length] != TRANSFER) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Moves pending motion to the end of the FIFO.
+	 * @return False if there was no room under {@link #FULL_DROP_NEWEST}
+	 */
+	private boolean flushMotion() {
+		if (!makeRoom(1)) {
+			return false;
+		}
+		append(motionCommand, motionParameter1, motionParameter2, null, 0, 0);
+		motionPending = false;
+		motionReleased = false;
+		return true;
+	}
+
+	/**
+	 * Ensures the FIFO has room for the given number of slots, applying the
+	 * full-queue policy if it does not.
+	 * @return False if the offered command must be dropped instead
+	 */
+	private boolean makeRoom(int slots) {
+		if (commands.length - count >= slots) {
+			return true;
+		}
+		if (policy == FULL_DROP_NEWEST) {
+			droppedCount++;
+			return false;
+		}
+		while (commands.length - count < slots) {
+			int victim = oldestDroppable();
+			if (victim < 0) {
+				droppedCount++;
+				return false;
+			}
+			remove(victim);
+			droppedCount++;
+			if (victim > 0 && victim < count) {
+				mergeMotion(victim - 1);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merges the FIFO entry after a position into the one at it, if both are
+	 * motion of the same kind.
+	 */
+	private void mergeMotion(int index) {
+		int slot = (head + index) % commands.length;
+		int next = (slot + 1) % commands.length;
+		if (priorityOf(commands[slot]) == PRIORITY_MOTION && commands[slot] == commands[next]) {
+			parameters1[slot] += parameters1[next];
+			parameters2[slot] += parameters2[next];
+			remove(index + 1);
+			mergedCount++;
+		}
+	}
+
+	/**
+	 * Returns the position in the FIFO of the oldest discrete command that
+	 * can be evicted, or -1 if there is none.
+	 */
+	private int oldestDroppable() {
+		for (int i = 0; i < count; i++) {
+			int command = commands[(head + i) % commands.length];
+			if (command != TRANSFER && command != RemoteValues.TEXT_CHUNK
+					&& command != ENCODED_FRAMES && priorityOf(command) != PRIORITY_MOTION) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Inserts a command at a position in the FIFO, moving the commands from
+	 * there on back by one. There must be room for it.
+	 */
+	private void insert(int index, int command, int parameter1, int parameter2,
+			CharSequence text, int start, int end) {
+		for (int i = count; i > index; i--) {
+			move((head + i - 1) % commands.length, (head + i) % commands.length);
+		}
+		count++;
+		set((head + index) % commands.length, command, parameter1, parameter2, text, start, end);
+	}
+
+	/**
+	 * Removes the command at a position in the FIFO, moving the commands
+	 * after it forward by one.
+	 */
+	private void remove(int index) {
+		releaseText((head + index) % commands.length);
+		for (int i = index; i < count - 1; i++) {
+			move((head + i + 1) % commands.length, (head + i) % commands.length);
+		}
+		count--;
+	}
+
+	/**
+	 * Moves a slot's command to another slot, swapping their text buffers
+	 * so the emptied one is kept for reuse.
+	 */
+	private void move(int from, int to) {
+		commands[to] = commands[from];
+		parameters1[to] = parameters1[from];
+		parameters2[to] = parameters2[from];
+		StringBuilder text = texts[to];
+		texts[to] = texts[from];
+		texts[from] = text;
+		frames[to] = frames[from];
+		frames[from] = null;
+	}
+
+	private void append(int command, int parameter1, int parameter2,
+			CharSequence text, int start, int end) {
+		set((head + count) % commands.length, command, parameter1, parameter2, text, start, end);
+		count++;
+	}
+
+	private void set(int slot, int command, int parameter1, int parameter2,
+			CharSequence text, int start, int end) {
+		commands[slot] = command;
+		parameters1[slot] = parameter1;
+		parameters2[slot] = parameter2;
+		if (text != null && end > start) {
+			if (texts[slot] == null) {
+				texts[slot] = new StringBuilder(Math.max(16, end - start));
+			}
+			texts[slot].append(text, start, end);
+		}
+	}
+
+	private void releaseText(int slot) {
+		frames[slot] = null;
+		StringBuilder text = texts[slot];
+		if (text != null) {
+			if (text.capacity() > MAX_RETAINED_TEXT) {
+				texts[slot] = null;
+			} else {
+				text.setLength(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.example;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A {@link Macro} encoded into the bytes it sends. The macro is split at
+ * its pauses and waits into segments of ready-made frames; each segment
+ * is replayed with a single write and followed by its pause, or by a
+ * SYNC whose token is only chosen when the macro runs. Nothing is encoded
+ * while a compiled macro plays.
+ *
+ * Immutable.
+ */
+public final class CompiledMacro {
+	private final byte[][] segments;
+	private final long[] waitMillis;
+	private final boolean[] sync;
+
+	CompiledMacro(byte[][] segments, long[] waitMillis, boolean[] sync) {
+		this.segments = segments;
+		this.waitMillis = waitMillis;
+		this.sync = sync;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * Returns the encoded frames of a segment. Do not change them.
+	 */
+	public byte[] getSegment(int index) {
+		return segments[index];
+	}
+
+	/**
+	 * Returns how long to pause after a segment, or the longest to wait for
+	 * the receiver if {@link #isSync(int)}, in milliseconds.
+	 */
+	public long getWaitMillis(int index) {
+		return waitMillis[index];
+	}
+
+	/**
+	 * Returns true if a segment is followed by a SYNC and a wait for its
+	 * SYNC_ACK.
+	 */
+	public boolean isSync(int index) {
+		return sync[index];
+	}
+
+	/**
+	 * Returns the number of encoded bytes in all segments.
+	 */
+	public int getEncodedLength() {
+		int length = 0;
+		for (byte[] segment : segments) {
+			length += segment.length;
+		}
+		return length;
+	}
+
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(segments.length);
+		for (int i = 0; i < segments.length; i++) {
+			out.writeInt(segments[i].length);
+			out.write(segments[i]);
+			out.writeLong(waitMillis[i]);
+			out.writeBoolean(sync[i]);
+		}
+	}
+
+	/**
+	 * Reads a macro written by {@link #writeTo(DataOutputStream)}.
+	 */
+	public static CompiledMacro readFrom(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("bad segment count " + count);
+		}
+		byte[][] segments = new byte[count][];
+		long[] waitMillis = new long[count];
+		boolean[] sync = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			int length = in.readInt();
+			if (length < 0 || length > RemoteCommandCodec.MAX_FRAME_LENGTH) {
+				throw new IOException("bad segment length " + length);
+			}
+			segments[i] = new byte[length];
+			in.readFully(segments[i]);
+			waitMillis[i] = in.readLong();
+			sync[i] = in.readBoolean();
+		}
+		return new CompiledMacro(segments, waitMillis, sync);
+	}
+}
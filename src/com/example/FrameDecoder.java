@@ -0,0 +1,213 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incrementally splits a byte stream into the length-prefixed frames
+ * written by {@link RemoteCommandCodec}. Bytes may arrive in pieces of any
+ * size; a frame becomes available from {@link #next()} once all of it has
+ * been fed in. Only the unparsed tail of the stream is kept, so memory use
+ * is bounded by the largest frame rather than by the stream.
+ *
+ * A BATCH frame is not returned itself. Once it is complete, the frames
+ * it carries are returned one by one, in order, as if they had been sent
+ * separately. Frames with an opcode this version does not know, such as
+ * commands added by a newer sender, are skipped whole; see
+ * {@link #getSkippedCount()}.
+ *
+ * Typical use with a blocking stream:
+ * <pre>
+ *   while (decoder.fill(in) != -1) {
+ *       while (decoder.next()) {
+ *           decoder.read(command);
+ *           ...
+ *       }
+ *   }
+ * </pre>
+ *
+ * Not thread safe.
+ */
+public final class FrameDecoder {
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private byte[] buffer;
+	// Unparsed bytes are buffer[start, end)
+	private int start = 0;
+	private int end = 0;
+	// End of the BATCH frame being expanded, or -1 outside a batch
+	private int batchEnd = -1;
+
+	// The frame most recently returned by next()
+	private int command;
+	private int payloadOffset;
+	private int payloadLength;
+	private long skipped = 0;
+
+	public FrameDecoder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public FrameDecoder(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	/**
+	 * Performs a single read from in into the free part of the buffer.
+	 * Blocks only as long as in.read does.
+	 * @return The number of bytes read, or -1 at end of stream
+	 */
+	public int fill(InputStream in) throws IOException {
+		makeRoom(1);
+		int n = in.read(buffer, end, buffer.length - end);
+		if (n > 0) {
+			end += n;
+		}
+		return n;
+	}
+
+	/**
+	 * Copies the remaining bytes of src into the decoder.
+	 */
+	public void feed(ByteBuffer src) {
+		int n = src.remaining();
+		makeRoom(n);
+		src.get(buffer, end, n);
+		end += n;
+	}
+
+	public void feed(byte[] src, int offset, int length) {
+		makeRoom(length);
+		System.arraycopy(src, offset, buffer, end, length);
+		end += length;
+	}
+
+	/**
+	 * Advances to the next complete frame with a known opcode, if one is
+	 * buffered.
+	 * @return True if a frame is available through the accessors
+	 * @throws StreamCorruptedException if the length prefix is invalid
+	 */
+	public boolean next() throws StreamCorruptedException {
+		while (true) {
+			if (start == batchEnd) {
+				batchEnd = -1;
+			}
+			boolean inBatch = batchEnd >= 0;
+			int limit = inBatch ? batchEnd : end;
+
+			long prefix;
+			try {
+				prefix = RemoteCommandCodec.getVarint(buffer, start, limit);
+			} catch (IllegalArgumentException e) {
+				throw new StreamCorruptedException(e.getMessage());
+			}
+			if (prefix < 0) {
+				if (inBatch) {
+					throw new StreamCorruptedException("truncated frame in batch");
+				}
+				return false;
+			}
+			if (prefix < RemoteCommandCodec.OPCODE_LENGTH
+					|| prefix > RemoteCommandCodec.MAX_FRAME_LENGTH) {
+				throw new StreamCorruptedException("bad frame length " + prefix);
+			}
+			int frameLength = (int) prefix;
+			int frameStart = start + RemoteCommandCodec.varintLength(frameLength);
+			if (limit - frameStart < frameLength) {
+				if (inBatch) {
+					throw new StreamCorruptedException("truncated frame in batch");
+				}
+				return false;
+			}
+			command = buffer[frameStart];
+			payloadOffset = frameStart + RemoteCommandCodec.OPCODE_LENGTH;
+			payloadLength = frameLength - RemoteCommandCodec.OPCODE_LENGTH;
+			start = frameStart + frameLength;
+
+			if (command == RemoteValues.BATCH) {
+				if (inBatch) {
+					throw new StreamCorruptedException("nested batch");
+				}
+				// Step into the batch; its frames are all buffered already
+				batchEnd = start;
+				start = payloadOffset;
+			} else if (!RemoteCommandCodec.isKnown(command)) {
+				// The length prefix says where the next frame starts
+				skipped++;
+			} else {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Decodes the current frame into an existing command.
+	 * @throws StreamCorruptedException if the payload does not match the opcode
+	 */
+	public void read(RemoteCommand into) throws StreamCorruptedException {
+		try {
+			RemoteCommandCodec.decodeBody(command, buffer, payloadOffset, payloadLength, into);
+		} catch (IllegalArgumentException e) {
+			throw new StreamCorruptedException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the opcode of the current frame.
+	 */
+	public int command() {
+		return command;
+	}
+
+	/**
+	 * Returns the array holding the current frame's payload. The contents
+	 * are only valid until the next call that feeds or fills the decoder.
+	 */
+	public byte[] array() {
+		return buffer;
+	}
+
+	public int payloadOffset() {
+		return payloadOffset;
+	}
+
+	public int payloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * Returns the number of frames skipped because their opcode is unknown.
+	 */
+	public long getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * Returns the number of bytes buffered but not yet returned as a frame.
+	 */
+	public int buffered() {
+		return end - start;
+	}
+
+	private void makeRoom(int needed) {
+		if (buffer.length - end >= needed) {
+			return;
+		}
+		int pending = end - start;
+		if (buffer.length - pending < needed) {
+			byte[] grown = new byte[Math.max(buffer.length * 2, pending + needed)];
+			System.arraycopy(buffer, start, grown, 0, pending);
+			buffer = grown;
+		} else {
+			System.arraycopy(buffer, start, buffer, 0, pending);
+		}
+		if (batchEnd >= 0) {
+			batchEnd -= start;
+		}
+		start = 0;
+		end = pending;
+	}
+}
@@ -0,0 +1,340 @@
+package com.example;
+
+/**
+ * Turns raw touch samples into remote commands: one finger moves the
+ * cursor and taps to left-click, two fingers scroll and tap to
+ * right-click. It knows nothing about Android; the caller passes each
+ * sample as primitives and receives commands through a {@link Listener},
+ * so the engine can be exercised and measured on a plain JVM. Handling a
+ * sample does not allocate.
+ *
+ * Cursor motion is kept in floating point and scaled by an
+ * {@link AccelerationCurve}; the fraction of a pixel left over after each
+ * command is carried into the next, so slow movements are not lost to
+ * rounding. Optionally the cursor is also led ahead of the finger by its
+ * predicted motion over a short horizon, to hide link latency. The lead
+ * sent with one command is taken back in the next, so the cursor still
+ * travels exactly as far as it would without prediction.
+ *
+ * Two-finger scrolling sends whole wheel notches by default. In precise
+ * mode it sends MOUSE_SCROLL_PRECISE in fractions of a notch instead.
+ * Either way the remainder is kept for the next command, and with a
+ * {@link KineticScroller} attached, lifting the fingers while they move
+ * hands the scroll over to a decaying fling.
+ *
+ * Not thread safe; feed it from one thread.
+ */
+public final class GestureEngine {
+	// Touch actions, numerically equal to android.view.MotionEvent's masked actions
+	public static final int ACTION_DOWN = 0;
+	public static final int ACTION_UP = 1;
+	public static final int ACTION_MOVE = 2;
+	public static final int ACTION_POINTER_DOWN = 5;
+	public static final int ACTION_POINTER_UP = 6;
+
+	// Movement, in pixels, below which a touch counts as a tap
+	public static final int TAP_SLOP = 5;
+	// Finger travel, in pixels, per scroll wheel notch
+	public static final int SCROLL_STEP = 50;
+	// Scroll speed, in pixels per millisecond, above which lifting the fingers flings
+	public static final float FLING_MIN_VELOCITY = 0.3f;
+
+	/**
+	 * Receives the commands produced by the engine.
+	 */
+	public interface Listener {
+		void onCommand(int command, int parameter1, int parameter2);
+	}
+
+	private final Listener listener;
+	private final SendRateController rateController;
+
+	private AccelerationCurve acceleration = AccelerationCurve.FLAT;
+	private final MotionPredictor predictor = new MotionPredictor();
+	private long predictionHorizon = 0;
+
+	private float previousX = -1;
+	private float previousY = -1;
+	private float previousScrollY = -1;
+	private float downX = -1;
+	private float downY = -1;
+	// Finger travel, in pixels, not yet sent as scrolling
+	private float scrollAmount = 0;
+	private boolean preciseScroll = false;
+	private final MotionPredictor scrollTracker = new MotionPredictor();
+	private KineticScroller kineticScroller;
+	// Finger motion seen but not yet emitted
+	private float pendingDx = 0;
+	private float pendingDy = 0;
+	// When cursor motion was last emitted, or the touch began
+	private long lastEmitTime = 0;
+	// Scaled cursor motion smaller than a pixel, carried into the next command
+	private float residualX = 0;
+	private float residualY = 0;
+	// Predicted cursor motion already sent ahead of the finger
+	private float leadX = 0;
+	private float leadY = 0;
+
+	/**
+	 * @param listener        Receives the commands
+	 * @param rateController  Decides how often cursor motion is emitted
+	 */
+	public GestureEngine(Listener listener, SendRateController rateController) {
+		this.listener = listener;
+		this.rateController = rateController;
+	}
+
+	/**
+	 * Sets how finger speed scales cursor motion. Defaults to
+	 * {@link AccelerationCurve#FLAT}.
+	 */
+	public void setAccelerationCurve(AccelerationCurve acceleration) {
+		if (acceleration == null) {
+			throw new NullPointerException("acceleration");
+		}
+		this.acceleration = acceleration;
+	}
+
+	public AccelerationCurve getAccelerationCurve() {
+		return acceleration;
+	}
+
+	/**
+	 * Sets how far ahead, in milliseconds, cursor motion is predicted.
+	 * Zero, the default, turns prediction off. Longer horizons are capped
+	 * at {@link MotionPredictor#MAX_HORIZON}.
+	 */
+	public void setPredictionHorizon(long millis) {
+		predictionHorizon = Math.max(0, Math.min(MotionPredictor.MAX_HORIZON, millis));
+	}
+
+	public long getPredictionHorizon() {
+		return predictionHorizon;
+	}
+
+	/**
+	 * Chooses between whole-notch MOUSE_SCROLL, the default, and
+	 * MOUSE_SCROLL_PRECISE, which needs a receiver that understands it.
+	 */
+	public void setPreciseScroll(boolean preciseScroll) {
+		this.preciseScroll = preciseScroll;
+	}
+
+	public boolean isPreciseScroll() {
+		return preciseScroll;
+	}
+
+	/**
+	 * Attaches the scroller that continues a two-finger scroll after the
+	 * fingers lift, or detaches it with null.
+	 */
+	public void setKineticScroller(KineticScroller kineticScroller) {
+		this.kineticScroller = kineticScroller;
+	}
+
+	/**
+	 * Handles an intermediate sample of a move that the platform batched
+	 * into a later event, such as a MotionEvent's historical positions.
+	 * The motion is accumulated but never emitted on its own; it goes out
+	 * with the next {@link #onSample} call.
+	 * @param pointerCount  The number of fingers down
+	 * @param x             The first finger's x position in pixels
+	 * @param y             The first finger's y position in pixels
+	 * @param eventTime     When the sample was taken, in milliseconds of a
+	 *                      monotonic clock such as MotionEvent.getEventTime()
+	 */
+	public void addHistory(int pointerCount, float x, float y, long eventTime) {
+		if (pointerCount == 1) {
+			accumulateMove(x, y, eventTime);
+		} else if (pointerCount == 2) {
+			accumulateScroll(x, y, eventTime);
+		}
+	}
+
+	/**
+	 * Handles one touch sample.
+	 * @param pointerCount  The number of fingers down; one moves the
+	 *                      cursor, two scroll, more are ignored
+	 * @param action        One of the ACTION constants
+	 * @param x             The first finger's x position in pixels
+	 * @param y             The first finger's y position in pixels
+	 * @param eventTime     When the sample was taken, in milliseconds of a
+	 *                      monotonic clock such as MotionEvent.getEventTime()
+	 */
+	public void onSample(int pointerCount, int action, float x, float y, long eventTime) {
+		if (pointerCount == 1) {
+			onSingleTouch(action, x, y, eventTime);
+		} else if (pointerCount == 2) {
+			onMultiTouch(action, x, y, eventTime);
+		}
+	}
+
+	private void onSingleTouch(int action, float x, float y, long eventTime) {
+		if (action == ACTION_DOWN) { // for recognizing a tap rather than a move
+			downX = x;
+			downY = y;
+			// in case the previous touch ended without an ACTION_UP
+			dropLead();
+			stopFling();
+			predictor.addSample(eventTime, x, y);
+		}
+
+		if (action == ACTION_MOVE) {
+			accumulateMove(x, y, eventTime);
+		} else if (x != 0 || y != 0) {
+			// a new touch starts from wherever the finger lands
+			previousX = x;
+			previousY = y;
+		}
+
+		boolean touchEnded = action == ACTION_UP;
+		if (pendingDx == 0 && pendingDy == 0 && !(touchEnded && (leadX != 0 || leadY != 0))) {
+			// the finger is resting, so the next movement's speed starts from now
+			lastEmitTime = eventTime;
+		} else if (touchEnded || rateController.shouldSend(eventTime)) {
+			// lower amount of packets sent, but never hold motion past the end of a touch
+			emitMove(eventTime, touchEnded);
+		}
+
+		// click only once the cursor has caught up and any lead is taken back
+		if (touchEnded && isTap(x, y)) {
+			listener.onCommand(RemoteValues.MOUSE_LEFT, 0, 0);
+		}
+	}
+
+	private void accumulateMove(float x, float y, long eventTime) {
+		if (x != 0 || y != 0) {
+			pendingDx += x - previousX;
+			pendingDy += y - previousY;
+			previousX = x;
+			previousY = y;
+			predictor.addSample(eventTime, x, y);
+		}
+	}
+
+	/**
+	 * Scales the pending finger motion by the acceleration curve and emits
+	 * the whole pixels of it, keeping the remainder for next time. With
+	 * prediction on, the lead sent last time is replaced by a fresh one.
+	 * @param touchEnded  True to take back the lead and send nothing ahead
+	 */
+	private void emitMove(long eventTime, boolean touchEnded) {
+		long elapsed = Math.max(1, eventTime - lastEmitTime);
+		float distance = (float) Math.sqrt(pendingDx * pendingDx + pendingDy * pendingDy);
+		float gain = acceleration.getGain(distance / elapsed);
+
+		float newLeadX = 0;
+		float newLeadY = 0;
+		if (predictionHorizon > 0 && !touchEnded && predictor.update()) {
+			newLeadX = predictor.getVelocityX() * predictionHorizon * gain;
+			newLeadY = predictor.getVelocityY() * predictionHorizon * gain;
+		}
+
+		float moveX = pendingDx * gain + newLeadX - leadX + residualX;
+		float moveY = pendingDy * gain + newLeadY - leadY + residualY;
+		leadX = newLeadX;
+		leadY = newLeadY;
+		int dx = (int) moveX;
+		int dy = (int) moveY;
+		residualX = moveX - dx;
+		residualY = moveY - dy;
+		pendingDx = 0;
+		pendingDy = 0;
+		lastEmitTime = eventTime;
+
+		if (dx != 0 || dy != 0) {
+			listener.onCommand(RemoteValues.MOVE_MOUSE_BY, dx, dy);
+		}
+	}
+
+	private void onMultiTouch(int action, float x, float y, long eventTime) {
+		if (action == ACTION_POINTER_DOWN) { // for recognizing a tap rather than a move
+			downX = x;
+			downY = y;
+			stopFling();
+			scrollTracker.reset();
+		} else if (action == ACTION_POINTER_UP) {
+			if (isTap(x, y)) {
+				listener.onCommand(RemoteValues.MOUSE_RIGHT, 0, 0);
+			} else {
+				startFling();
+			}
+		}
+
+		if (y != 0) {
+			if (action != ACTION_MOVE) {
+				previousScrollY = y;
+			}
+			accumulateScroll(x, y, eventTime);
+			emitScroll(eventTime);
+		}
+	}
+
+	private void accumulateScroll(float x, float y, long eventTime) {
+		if (y != 0) {
+			scrollAmount += y - previousScrollY;
+			previousScrollY = y;
+			scrollTracker.addSample(eventTime, x, y);
+
+			// to avoid incorrect mouse movements after scrolling
+			previousX = x;
+			previousY = y;
+			pendingDx = 0;
+			pendingDy = 0;
+			dropLead();
+		}
+	}
+
+	/**
+	 * Sends the whole notches, or in precise mode the whole scroll units,
+	 * of the scrolling seen so far, keeping the remainder for next time.
+	 */
+	private void emitScroll(long eventTime) {
+		if (preciseScroll) {
+			int units = (int) (scrollAmount * RemoteValues.SCROLL_UNITS_PER_NOTCH / SCROLL_STEP);
+			if (units != 0 && rateController.shouldSend(eventTime)) {
+				listener.onCommand(RemoteValues.MOUSE_SCROLL_PRECISE, units, 0);
+				scrollAmount -= (float) units * SCROLL_STEP / RemoteValues.SCROLL_UNITS_PER_NOTCH;
+			}
+		} else {
+			int notches = (int) (scrollAmount / SCROLL_STEP);
+			if (notches != 0) {
+				listener.onCommand(RemoteValues.MOUSE_SCROLL, notches, 0);
+				scrollAmount -= notches * SCROLL_STEP;
+			}
+		}
+	}
+
+	private void startFling() {
+		if (kineticScroller == null || !scrollTracker.update()) {
+			return;
+		}
+		float velocity = scrollTracker.getVelocityY();
+		if (Math.abs(velocity) >= FLING_MIN_VELOCITY) {
+			kineticScroller.fling(velocity * RemoteValues.SCROLL_UNITS_PER_NOTCH / SCROLL_STEP,
+					preciseScroll);
+		}
+	}
+
+	private void stopFling() {
+		if (kineticScroller != null) {
+			kineticScroller.stop();
+		}
+	}
+
+	/**
+	 * Forgets the finger's recent path and schedules any lead already sent
+	 * to be taken back with the next cursor motion.
+	 */
+	private void dropLead() {
+		residualX -= leadX;
+		residualY -= leadY;
+		leadX = 0;
+		leadY = 0;
+		predictor.reset();
+	}
+
+	private boolean isTap(float upX, float upY) {
+		return Math.abs(upX - downX) <= TAP_SLOP && Math.abs(upY - downY) <= TAP_SLOP;
+	}
+}
@@ -0,0 +1,125 @@
+package com.example;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a two-finger scroll going after the fingers lift. A fling starts
+ * at the release velocity and decays exponentially; each {@link #TICK}
+ * milliseconds the distance covered is sent as scroll commands through a
+ * {@link GestureEngine.Listener}. The ticks run on a background
+ * scheduler, so the thread that delivers touch events stays free.
+ *
+ * Thread safe. The listener is called from the scheduler thread.
+ */
+public final class KineticScroller {
+	/** Time between scroll commands while flinging, in milliseconds */
+	public static final long TICK = 16;
+	/** Share of the velocity kept from one tick to the next */
+	public static final float FRICTION = 0.95f;
+	/** Velocity, in scroll units per millisecond, below which a fling stops */
+	public static final float MIN_VELOCITY = 0.05f;
+
+	private final GestureEngine.Listener listener;
+	private final Runnable tick = new Runnable() {
+		public void run() {
+			tick();
+		}
+	};
+
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> future;
+	private float velocity;
+	private float residual;
+	private boolean precise;
+
+	/**
+	 * @param listener Receives the MOUSE_SCROLL or MOUSE_SCROLL_PRECISE commands
+	 */
+	public KineticScroller(GestureEngine.Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts a fling, replacing any fling in progress.
+	 * @param unitsPerMilli  The release velocity in 1/{@link RemoteValues#SCROLL_UNITS_PER_NOTCH}
+	 *                       of a wheel notch per millisecond
+	 * @param precise        True to send MOUSE_SCROLL_PRECISE, false for whole notches
+	 */
+	public synchronized void fling(float unitsPerMilli, boolean precise) {
+		velocity = unitsPerMilli;
+		residual = 0;
+		this.precise = precise;
+		if (future == null) {
+			if (executor == null) {
+				executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "KineticScroller");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			future = executor.scheduleAtFixedRate(tick, TICK, TICK, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the fling in progress, if any, for example when a finger touches down.
+	 */
+	public synchronized void stop() {
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+		velocity = 0;
+		residual = 0;
+	}
+
+	public synchronized boolean isFlinging() {
+		return future != null;
+	}
+
+	/**
+	 * Stops any fling and releases the scheduler thread. A later fling
+	 * starts a new one.
+	 */
+	public synchronized void shutdown() {
+		stop();
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	private void tick() {
+		int command;
+		int amount;
+		synchronized (this) {
+			if (future == null) {
+				return;
+			}
+			residual += velocity * TICK;
+			velocity *= FRICTION;
+			if (Math.abs(velocity) < MIN_VELOCITY) {
+				future.cancel(false);
+				future = null;
+			}
+			if (precise) {
+				command = RemoteValues.MOUSE_SCROLL_PRECISE;
+				amount = (int) residual;
+				residual -= amount;
+			} else {
+				command = RemoteValues.MOUSE_SCROLL;
+				amount = (int) (residual / RemoteValues.SCROLL_UNITS_PER_NOTCH);
+				residual -= amount * RemoteValues.SCROLL_UNITS_PER_NOTCH;
+			}
+		}
+		if (amount != 0) {
+			listener.onCommand(command, amount, 0);
+		}
+	}
+}
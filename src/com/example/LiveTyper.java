@@ -0,0 +1,95 @@
+package com.example;
+
+/**
+ * Turns successive states of a text box into the keystrokes that bring
+ * the remote side from one state to the next. It keeps a mirror of the
+ * text already sent; for each new state it finds the longest common
+ * prefix, deletes what follows it on the remote side and types the rest
+ * of the new text. The remote cursor is assumed to sit at the end of what
+ * was typed, so appending a character sends just that character and a
+ * backspace at the end sends a single delete.
+ *
+ * The mirror only records edits the listener accepted. If one is refused,
+ * for example because the outbound queue is full, the mirror keeps what
+ * the remote side really has and the next update sends the difference
+ * again, so a dropped command cannot leave the two out of step.
+ *
+ * Comparing against the mirror does not allocate once it has grown to
+ * the longest text seen. Not thread safe; feed it from one thread.
+ */
+public final class LiveTyper {
+	/**
+	 * Receives the edits to apply on the remote side, in order.
+	 */
+	public interface Listener {
+		/**
+		 * Deletes the given number of characters before the cursor.
+		 * @return False if the delete could not be sent
+		 */
+		boolean onDelete(int count);
+
+		/**
+		 * Types text[start, end). The characters are only valid during the call.
+		 * @return False if the text could not be sent
+		 */
+		boolean onInsert(CharSequence text, int start, int end);
+	}
+
+	private final Listener listener;
+	private final StringBuilder sent = new StringBuilder();
+
+	public LiveTyper(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sends whatever it takes to turn the text sent so far into text.
+	 * @return False if an edit was refused; calling again with the same
+	 *         text retries it
+	 */
+	public boolean update(CharSequence text) {
+		int length = text.length();
+		int sentLength = sent.length();
+		int prefix = 0;
+		int limit = Math.min(length, sentLength);
+		while (prefix < limit && text.charAt(prefix) == sent.charAt(prefix)) {
+			prefix++;
+		}
+		// Never split a surrogate pair between the kept and the replaced part
+		if (prefix > 0 && Character.isHighSurrogate(sent.charAt(prefix - 1))
+				&& prefix < sentLength) {
+			prefix--;
+		}
+
+		if (prefix < sentLength) {
+			// Remote backspaces remove whole characters, not UTF-16 units
+			if (!listener.onDelete(Character.codePointCount(sent, prefix, sentLength))) {
+				// Typing after text that was not deleted would only add to the damage
+				return false;
+			}
+			sent.setLength(prefix);
+		}
+		if (prefix < length) {
+			if (!listener.onInsert(text, prefix, length)) {
+				return false;
+			}
+			sent.append(text, prefix, length);
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets the text sent so far, for example before the text box is
+	 * cleared after the text was committed with Enter.
+	 */
+	public void reset() {
+		sent.setLength(0);
+	}
+
+	/**
+	 * Returns the text sent so far.
+	 */
+	public CharSequence getSent() {
+		return sent;
+	}
+}
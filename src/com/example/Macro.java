@@ -0,0 +1,230 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence of commands to send as one action, such as opening a URL in
+ * a new tab. Between commands a macro can pause for a fixed time, or wait
+ * until the receiver confirms it has performed everything sent so far.
+ * Steps are added in order with the chaining methods below and the macro
+ * is run by a {@link MacroRunner}. A macro can also be written as a
+ * script, see {@link #parse(String)}, and is compiled once into the
+ * encoded frames it sends, see {@link #compile()}.
+ *
+ * Not thread safe while it is being built; do not change a macro that is
+ * running.
+ */
+public final class Macro {
+	// Kinds of step
+	private static final int STEP_COMMAND = 0;
+	private static final int STEP_DELAY = 1;
+	private static final int STEP_SYNC = 2;
+
+	/** How long a sync step without a timeout in its script waits, in milliseconds */
+	public static final long DEFAULT_SYNC_TIMEOUT = 1000;
+
+	private final List<Step> steps = new ArrayList<Step>();
+
+	/**
+	 * Builds a macro from a script with one step per line. Blank lines and
+	 * lines starting with # are skipped; keywords are not case sensitive.
+	 * <pre>
+	 *   type &lt;text&gt;     TYPE the rest of the line, spaces included
+	 *   enter            ENTER
+	 *   tab              TAB
+	 *   backspace        BACKSPACE
+	 *   delete &lt;n&gt;       DELETE_CHARS n
+	 *   newtab           NEW_TAB
+	 *   left, right      MOUSE_LEFT, MOUSE_RIGHT
+	 *   move &lt;dx&gt; &lt;dy&gt;  MOVE_MOUSE_BY
+	 *   scroll &lt;n&gt;       MOUSE_SCROLL
+	 *   wait &lt;ms&gt;        pause
+	 *   sync [ms]        wait for the receiver, {@link #DEFAULT_SYNC_TIMEOUT} by default
+	 * </pre>
+	 * @throws IllegalArgumentException naming the first line that is not understood
+	 */
+	public static Macro parse(String script) {
+		Macro macro = new Macro();
+		String[] lines = script.split("\r?\n");
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			int space = line.indexOf(' ');
+			String keyword = (space < 0 ? line : line.substring(0, space)).toLowerCase();
+			String rest = space < 0 ? "" : line.substring(space + 1).trim();
+			try {
+				if (keyword.equals("type")) {
+					// Take the text from the untrimmed line so trailing spaces are typed
+					String text = lines[i].substring(lines[i].indexOf(line.charAt(0)));
+					macro.type(text.length() > 5 ? text.substring(5) : "");
+				} else if (keyword.equals("enter")) {
+					macro.key(RemoteValues.ENTER);
+				} else if (keyword.equals("backspace")) {
+					macro.key(RemoteValues.BACKSPACE);
+				} else if (keyword.equals("delete")) {
+					macro.command(RemoteValues.DELETE_CHARS, positive(rest), 0, null);
+				} else if (keyword.equals("tab")) {
+					macro.key(RemoteValues.TAB);
+				} else if (keyword.equals("newtab")) {
+					macro.key(RemoteValues.NEW_TAB);
+				} else if (keyword.equals("left")) {
+					macro.key(RemoteValues.MOUSE_LEFT);
+				} else if (keyword.equals("right")) {
+					macro.key(RemoteValues.MOUSE_RIGHT);
+				} else if (keyword.equals("move")) {
+					String[] xy = rest.split("\\s+");
+					if (xy.length != 2) {
+						throw new IllegalArgumentException();
+					}
+					macro.command(RemoteValues.MOVE_MOUSE_BY,
+							Integer.parseInt(xy[0]), Integer.parseInt(xy[1]), null);
+				} else if (keyword.equals("scroll")) {
+					macro.command(RemoteValues.MOUSE_SCROLL, Integer.parseInt(rest), 0, null);
+				} else if (keyword.equals("wait")) {
+					macro.delay(positive(rest));
+				} else if (keyword.equals("sync")) {
+					macro.sync(rest.length() == 0 ? DEFAULT_SYNC_TIMEOUT : positive(rest));
+				} else {
+					throw new IllegalArgumentException();
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("line " + (i + 1) + ": " + line);
+			}
+		}
+		return macro;
+	}
+
+	private static int positive(String number) {
+		int value = Integer.parseInt(number);
+		if (value < 0) {
+			throw new IllegalArgumentException(number);
+		}
+		return value;
+	}
+
+	/**
+	 * Adds a command.
+	 * @param command  One of the {@link RemoteValues} opcodes
+	 * @param text     The text for a TYPE command, otherwise null
+	 */
+	public Macro command(int command, int parameter1, int parameter2, String text) {
+		steps.add(new Step(STEP_COMMAND, command, parameter1, parameter2, text, 0));
+		return this;
+	}
+
+	/**
+	 * Adds a TYPE command for the text.
+	 */
+	public Macro type(String text) {
+		return command(RemoteValues.TYPE, 0, 0, text);
+	}
+
+	/**
+	 * Adds a command without parameters, such as ENTER or NEW_TAB.
+	 */
+	public Macro key(int command) {
+		return command(command, 0, 0, null);
+	}
+
+	/**
+	 * Adds a pause before the next step.
+	 */
+	public Macro delay(long millis) {
+		steps.add(new Step(STEP_DELAY, 0, 0, 0, null, millis));
+		return this;
+	}
+
+	/**
+	 * Adds a wait for the receiver to confirm, with a SYNC_ACK, that it has
+	 * performed every command before this step. A receiver that does not
+	 * answer in time is assumed to have caught up. The receiver does not
+	 * wait for applications to react to that input; follow with a
+	 * {@link #delay(long)} if they need a moment.
+	 * @param timeoutMillis  The longest to wait
+	 */
+	public Macro sync(long timeoutMillis) {
+		steps.add(new Step(STEP_SYNC, RemoteValues.SYNC, 0, 0, null, timeoutMillis));
+		return this;
+	}
+
+	public int size() {
+		return steps.size();
+	}
+
+	/**
+	 * Encodes the macro into the bytes it sends. Commands between two
+	 * pauses or waits become one segment of frames, grouped into BATCH
+	 * frames, that is replayed with a single write.
+	 */
+	public CompiledMacro compile() {
+		List<byte[]> segments = new ArrayList<byte[]>();
+		List<Long> waits = new ArrayList<Long>();
+		List<Boolean> syncs = new ArrayList<Boolean>();
+		CommandEncoder encoder = new CommandEncoder();
+		encoder.setBatchLimits(CommandEncoder.MAX_BATCH_BYTES, 0);
+		ByteArrayOutputStream segment = new ByteArrayOutputStream();
+		int i = 0;
+		while (true) {
+			Step step = i < steps.size() ? steps.get(i++) : null;
+			if (step != null && step.kind == STEP_COMMAND) {
+				encoder.put(step.command, step.parameter1, step.parameter2, step.text);
+				if (encoder.isBatchFull()) {
+					writeTo(encoder, segment);
+				}
+				continue;
+			}
+			writeTo(encoder, segment);
+			if (step == null && segment.size() == 0) {
+				break;
+			}
+			segments.add(segment.toByteArray());
+			segment.reset();
+			waits.add(step == null ? 0 : step.millis);
+			syncs.add(step != null && step.kind == STEP_SYNC);
+			if (step == null) {
+				break;
+			}
+		}
+
+		byte[][] frames = segments.toArray(new byte[segments.size()][]);
+		long[] waitMillis = new long[frames.length];
+		boolean[] sync = new boolean[frames.length];
+		for (int s = 0; s < frames.length; s++) {
+			waitMillis[s] = waits.get(s);
+			sync[s] = syncs.get(s);
+		}
+		return new CompiledMacro(frames, waitMillis, sync);
+	}
+
+	private static void writeTo(CommandEncoder encoder, ByteArrayOutputStream out) {
+		try {
+			encoder.writeTo(out);
+		} catch (IOException e) {
+			// A ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class Step {
+		final int kind;
+		final int command;
+		final int parameter1;
+		final int parameter2;
+		final String text;
+		final long millis; // delay, or timeout of a sync
+
+		Step(int kind, int command, int parameter1, int parameter2, String text, long millis) {
+			this.kind = kind;
+			this.command = command;
+			this.parameter1 = parameter1;
+			this.parameter2 = parameter2;
+			this.text = text;
+			this.millis = millis;
+		}
+	}
+}
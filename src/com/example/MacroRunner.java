@@ -0,0 +1,259 @@
+package com.example;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a {@link CompiledMacro} without blocking the caller. Every segment
+ * of ready-made frames is handed to the {@link Writer} as one unit, from a
+ * background scheduler that also times the pauses, so no caller sleeps.
+ * A segment followed by a sync is followed by a SYNC with a fresh token;
+ * the macro goes on as soon as the matching SYNC_ACK arrives through
+ * {@link #onSyncAck(int)}, or once the wait times out if the receiver
+ * never answers.
+ *
+ * The writer normally queues the frames behind the commands already in
+ * the outbound {@link CommandQueue}, so they keep their order with the
+ * text and keys around them. Pauses are timed from when a segment is
+ * queued; a pause that must follow what the receiver has done belongs
+ * after a sync.
+ *
+ * One macro plays at a time; starting another cancels it. Thread safe.
+ * The listener is called with the runner's lock held, from whichever
+ * thread finished or cancelled the macro.
+ */
+public final class MacroRunner {
+	/**
+	 * Takes a macro's encoded frames to the connection.
+	 */
+	public interface Writer {
+		/**
+		 * Sends a segment's frames, then a SYNC carrying syncToken unless
+		 * it is 0, in order with the commands sent before them. Called on
+		 * the runner's scheduler thread; should not block.
+		 * @param frames  Encoded frames, possibly none; do not change them
+		 * @return False if there is no connection, or no room, to send them
+		 */
+		boolean write(byte[] frames, int syncToken);
+	}
+
+	/**
+	 * Reports the end of a macro.
+	 */
+	public interface Listener {
+		/**
+		 * @param run        The number {@link #start(CompiledMacro)} returned
+		 * @param completed  True if every segment was written, false if the
+		 *                   macro was cancelled or the write failed
+		 */
+		void onFinished(int run, boolean completed);
+	}
+
+	private final Writer writer;
+	private final Listener listener;
+	private ScheduledExecutorService executor;
+	private int nextRun = 1;
+	private int nextToken = 1;
+
+	// The macro in progress; macro is null when there is none
+	private CompiledMacro macro;
+	private int run;
+	private int segment;        // index of the next segment to write
+	private int awaitedToken;   // token of the SYNC being waited for, 0 for none
+	private boolean writing;    // a segment is being handed to the writer outside the lock
+	private ScheduledFuture<?> future;
+	private int wake;           // number of the only scheduled wake-up still valid
+	private long syncTimeouts = 0;
+
+	/**
+	 * @param writer    Where the macro's frames are written
+	 * @param listener  Told when each macro ends, may be null
+	 */
+	public MacroRunner(Writer writer, Listener listener) {
+		this.writer = writer;
+		this.listener = listener;
+	}
+
+	/**
+	 * Compiles a macro and starts playing it.
+	 * @see #start(CompiledMacro)
+	 */
+	public int start(Macro macro) {
+		return start(macro.compile());
+	}
+
+	/**
+	 * Starts playing a macro, cancelling any macro in progress.
+	 * @return The run's number, as reported to the listener
+	 */
+	public synchronized int start(CompiledMacro macro) {
+		cancel();
+		this.macro = macro;
+		run = nextRun++;
+		segment = 0;
+		schedule(0, false);
+		return run;
+	}
+
+	/**
+	 * Handles a SYNC_ACK from the receiver. Tokens other than the one being
+	 * waited for, such as late answers to a sync that timed out, are ignored.
+	 */
+	public synchronized void onSyncAck(int token) {
+		if (macro == null || token != awaitedToken) {
+			return;
+		}
+		awaitedToken = 0;
+		if (!writing) {
+			// Otherwise play() sees the answer once its write returns
+			schedule(0, false);
+		}
+	}
+
+	/**
+	 * Stops the macro in progress. Segments already written are still sent.
+	 */
+	public synchronized void cancel() {
+		if (macro != null) {
+			finish(false);
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return macro != null;
+	}
+
+	/**
+	 * Return the number of syncs that gave up waiting for the receiver.
+	 */
+	public synchronized long getSyncTimeoutCount() {
+		return syncTimeouts;
+	}
+
+	/**
+	 * Cancels any macro and releases the scheduler thread. A later macro
+	 * starts a new one.
+	 */
+	public synchronized void shutdown() {
+		cancel();
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Writes segments until the macro ends or has to wait. Runs on the
+	 * scheduler thread; the lock is released during each write.
+	 */
+	private void play() {
+		while (true) {
+			int playing;
+			byte[] frames;
+			int token = 0;
+			synchronized (this) {
+				if (macro == null) {
+					return;
+				}
+				if (segment == macro.getSegmentCount()) {
+					finish(true);
+					return;
+				}
+				playing = run;
+				frames = macro.getSegment(segment);
+				if (macro.isSync(segment)) {
+					token = nextToken++;
+					if (nextToken < 0) {
+						// Tokens are sent as unsigned varints; keep them short
+						nextToken = 1;
+					}
+					// Set before writing, since the answer can beat the write's return
+					awaitedToken = token;
+				}
+				writing = true;
+			}
+
+			boolean written = (frames.length == 0 && token == 0) || writer.write(frames, token);
+
+			synchronized (this) {
+				writing = false;
+				if (macro == null || run != playing) {
+					return;
+				}
+				if (!written) {
+					finish(false);
+					return;
+				}
+				long wait = macro.getWaitMillis(segment);
+				segment++;
+				if (token != 0) {
+					if (awaitedToken != 0) {
+						schedule(wait, true);
+						return;
+					}
+				} else if (wait > 0) {
+					schedule(wait, false);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Plays on after a delay. When timeout is true the delay is the wait
+	 * for a SYNC_ACK, and the macro goes on without one. Only the latest
+	 * wake-up scheduled counts.
+	 */
+	private void schedule(long millis, final boolean timeout) {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "MacroRunner");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		cancelFuture();
+		final int w = wake;
+		future = executor.schedule(new Runnable() {
+			public void run() {
+				wakeUp(w, timeout);
+			}
+		}, millis, TimeUnit.MILLISECONDS);
+	}
+
+	private void wakeUp(int w, boolean timeout) {
+		synchronized (this) {
+			if (macro == null || w != wake) {
+				return;
+			}
+			future = null;
+			if (timeout) {
+				syncTimeouts++;
+				awaitedToken = 0;
+			}
+		}
+		play();
+	}
+
+	private void cancelFuture() {
+		wake++;
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+	}
+
+	private void finish(boolean completed) {
+		cancelFuture();
+		awaitedToken = 0;
+		macro = null;
+		if (listener != null) {
+			listener.onFinished(run, completed);
+		}
+	}
+}
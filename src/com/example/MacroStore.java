@@ -0,0 +1,213 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps user-defined macros in a file, both as the script the user wrote
+ * and compiled, so a macro is parsed and encoded once when it is saved
+ * and never again when it is played. Macros are kept in the order they
+ * were first saved.
+ *
+ * Every change rewrites the whole file through a temporary file that is
+ * synced to disk and then renamed over it, so a failed save or a crash
+ * leaves the previous macros intact.
+ * A file written with a different {@link #VERSION} has its scripts
+ * compiled again when it is loaded. Scripts from version 1, where "tab"
+ * opened a new tab, have those lines renamed to "newtab" first. Names and
+ * scripts are stored as length-prefixed UTF-8 since version 3; earlier
+ * versions used writeUTF, which could not hold more than 64 KB.
+ *
+ * Thread safe.
+ */
+public final class MacroStore {
+	/** Format of the file, changed whenever the encoding of commands changes */
+	public static final int VERSION = 3;
+
+	// Longest name or script in UTF-8 bytes; a longer length means a damaged file
+	private static final int MAX_STRING_LENGTH = RemoteCommandCodec.MAX_FRAME_LENGTH;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final Map<String, Entry> macros = new LinkedHashMap<String, Entry>();
+
+	private static final class Entry {
+		final String script;
+		final CompiledMacro compiled;
+
+		Entry(String script, CompiledMacro compiled) {
+			this.script = script;
+			this.compiled = compiled;
+		}
+	}
+
+	/**
+	 * @param file  Where the macros are kept; it need not exist yet
+	 */
+	public MacroStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replaces the macros in memory with those in the file. A missing file
+	 * holds no macros.
+	 */
+	public synchronized void load() throws IOException {
+		macros.clear();
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		} catch (FileNotFoundException e) {
+			return;
+		}
+		try {
+			int version = in.readInt();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = version < 3 ? in.readUTF() : readString(in);
+				String script = version < 3 ? in.readUTF() : readString(in);
+				CompiledMacro compiled = CompiledMacro.readFrom(in);
+				if (version != VERSION) {
+					if (version == 1) {
+						script = renameTabKeyword(script);
+					}
+					compiled = Macro.parse(script).compile();
+				}
+				macros.put(name, new Entry(script, compiled));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException("unreadable macro: " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the names of the macros, in the order they were first saved.
+	 */
+	public synchronized List<String> getNames() {
+		return new ArrayList<String>(macros.keySet());
+	}
+
+	/**
+	 * Returns the compiled macro with the given name, or null.
+	 */
+	public synchronized CompiledMacro get(String name) {
+		Entry entry = macros.get(name);
+		return entry == null ? null : entry.compiled;
+	}
+
+	/**
+	 * Returns the script of the macro with the given name, or null.
+	 */
+	public synchronized String getScript(String name) {
+		Entry entry = macros.get(name);
+		return entry == null ? null : entry.script;
+	}
+
+	/**
+	 * Compiles a script and saves it under the given name, replacing any
+	 * macro with that name.
+	 * @throws IllegalArgumentException if the script cannot be parsed,
+	 *         see {@link Macro#parse(String)}, or the name or script is
+	 *         longer than the file can hold
+	 */
+	public synchronized void put(String name, String script) throws IOException {
+		if (RemoteCommandCodec.utf8Length(name) > MAX_STRING_LENGTH
+				|| RemoteCommandCodec.utf8Length(script) > MAX_STRING_LENGTH) {
+			throw new IllegalArgumentException("macro longer than " + MAX_STRING_LENGTH + " bytes");
+		}
+		CompiledMacro compiled = Macro.parse(script).compile();
+		Entry previous = macros.put(name, new Entry(script, compiled));
+		try {
+			save();
+		} catch (IOException e) {
+			if (previous == null) {
+				macros.remove(name);
+			} else {
+				macros.put(name, previous);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes the macro with the given name.
+	 * @return False if there was none
+	 */
+	public synchronized boolean remove(String name) throws IOException {
+		Entry previous = macros.remove(name);
+		if (previous == null) {
+			return false;
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			// Kept out of order rather than lost
+			macros.put(name, previous);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Turns each "tab" step of a version 1 script, which meant NEW_TAB, into
+	 * "newtab". Keywords are not case sensitive and take no argument.
+	 */
+	static String renameTabKeyword(String script) {
+		return script.replaceAll("(?im)^([ \\t]*)tab([ \\t]*)$", "$1newtab$2");
+	}
+
+	private void save() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(macros.size());
+			for (Map.Entry<String, Entry> macro : macros.entrySet()) {
+				writeString(out, macro.getKey());
+				writeString(out, macro.getValue().script);
+				macro.getValue().compiled.writeTo(out);
+			}
+			// On disk before the rename, or a crash could leave an empty file
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("could not replace " + file);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_STRING_LENGTH) {
+			throw new IOException("bad string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+}
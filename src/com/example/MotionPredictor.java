@@ -0,0 +1,117 @@
+package com.example;
+
+/**
+ * Estimates finger velocity from the most recent touch samples, so the
+ * cursor can be moved to where the finger is expected to be once the
+ * command arrives rather than where it was when it was sent.
+ *
+ * The velocity is the least-squares slope of position over time across
+ * the samples taken within {@link #WINDOW} of the newest one. Samples are
+ * held in a fixed ring, so neither recording nor estimating allocates.
+ * The same estimate serves as the release velocity of a scroll fling.
+ *
+ * Not thread safe; feed it from one thread.
+ */
+public final class MotionPredictor {
+	/** Number of recent samples the estimate may use */
+	public static final int HISTORY = 8;
+	/** Age, in milliseconds, past which a sample no longer counts */
+	public static final long WINDOW = 60;
+	/** Longest horizon, in milliseconds, worth extrapolating over */
+	public static final long MAX_HORIZON = 80;
+
+	private final long[] times = new long[HISTORY];
+	private final float[] xs = new float[HISTORY];
+	private final float[] ys = new float[HISTORY];
+	private int next = 0;
+	private int count = 0;
+
+	private float velocityX = 0;
+	private float velocityY = 0;
+
+	/**
+	 * Records the finger position at the given time.
+	 * @param eventTime  When the sample was taken, in milliseconds
+	 */
+	public void addSample(long eventTime, float x, float y) {
+		times[next] = eventTime;
+		xs[next] = x;
+		ys[next] = y;
+		next = (next + 1) % HISTORY;
+		if (count < HISTORY) {
+			count++;
+		}
+	}
+
+	/**
+	 * Recomputes the velocity from the recorded samples.
+	 * @return false, with the velocity set to zero, if there are too few
+	 *         recent samples to estimate it
+	 */
+	public boolean update() {
+		velocityX = 0;
+		velocityY = 0;
+		if (count < 2) {
+			return false;
+		}
+
+		int newest = (next + HISTORY - 1) % HISTORY;
+		long latest = times[newest];
+		int used = 0;
+		float sumT = 0, sumX = 0, sumY = 0;
+		for (int i = 0; i < count; i++) {
+			int slot = (newest + HISTORY - i) % HISTORY;
+			long age = latest - times[slot];
+			if (age > WINDOW) {
+				break;
+			}
+			sumT -= age;
+			sumX += xs[slot];
+			sumY += ys[slot];
+			used++;
+		}
+		if (used < 2) {
+			return false;
+		}
+
+		float meanT = sumT / used, meanX = sumX / used, meanY = sumY / used;
+		float varianceT = 0, covarianceX = 0, covarianceY = 0;
+		for (int i = 0; i < used; i++) {
+			int slot = (newest + HISTORY - i) % HISTORY;
+			float t = (times[slot] - latest) - meanT;
+			varianceT += t * t;
+			covarianceX += t * (xs[slot] - meanX);
+			covarianceY += t * (ys[slot] - meanY);
+		}
+		if (varianceT == 0) {
+			return false;
+		}
+		velocityX = covarianceX / varianceT;
+		velocityY = covarianceY / varianceT;
+		return true;
+	}
+
+	/**
+	 * Returns the horizontal velocity from the last {@link #update()}, in pixels per millisecond.
+	 */
+	public float getVelocityX() {
+		return velocityX;
+	}
+
+	/**
+	 * Returns the vertical velocity from the last {@link #update()}, in pixels per millisecond.
+	 */
+	public float getVelocityY() {
+		return velocityY;
+	}
+
+	/**
+	 * Forgets all samples, for example when a new touch begins.
+	 */
+	public void reset() {
+		next = 0;
+		count = 0;
+		velocityX = 0;
+		velocityY = 0;
+	}
+}
@@ -1,12 +1,5 @@
 package com.example;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 public class RemoteCommand implements Serializable {
@@ -25,48 +18,27 @@ public class RemoteCommand implements Serializable {
 	public RemoteCommand() {
 	}
 
+	/**
+	 * Decodes a command written by {@link #getByteArray()}.
+	 * @return The command, or null if the data is malformed
+	 * @see RemoteCommandCodec#decode(byte[], int, int)
+	 */
 	public static RemoteCommand getRemoteCommand(byte data[]) {
-		ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        //System.err.println("sent " + data.length + " bytes: " + data[0] + "," + data[1] + "," + data[2] + "," + data[3]);
-		ObjectInput in = null;
 		try {
-			in = new ObjectInputStream(bis);
-            RemoteCommand ret = (RemoteCommand) in.readObject();
-			return ret;
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
+			return RemoteCommandCodec.decode(data, 0, data.length);
+		} catch (IllegalArgumentException e) {
 			e.printStackTrace();
-		} finally {
-			try {
-				bis.close();
-				in.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
 		}
 		return null;
-
 	}
 
+	/**
+	 * Encodes this command with the compact binary layout described in
+	 * {@link RemoteCommandCodec}.
+	 */
 	public byte[] getByteArray() {
-		byte[] retval = null;
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
-		ObjectOutput out = null;
-		try {
-			out = new ObjectOutputStream(bos);
-			out.writeObject(this);
-			return bos.toByteArray();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				out.close();
-				bos.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		byte[] retval = new byte[RemoteCommandCodec.encodedLength(this)];
+		RemoteCommandCodec.encode(this, retval, 0);
 		return retval;
 	}
 }
@@ -0,0 +1,520 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding for {@link RemoteCommand}.
+ *
+ * Every command is sent as one self-delimiting frame. The frame starts
+ * with its length as an unsigned base-128 varint (one byte for any frame
+ * shorter than 128 bytes), counting the opcode and payload but not the
+ * length itself. Next comes a one byte opcode from {@link RemoteValues},
+ * followed by a payload whose layout depends on the opcode. All
+ * fixed-width integers are big-endian.
+ *
+ * <pre>
+ *   MOVE_MOUSE_BY   [length][op][dx:varint][dy:varint]  or  [length][op][dx:4][dy:4]
+ *   MOUSE_SCROLL, MOUSE_SCROLL_PRECISE
+ *                   [length][op][amount:varint]  or  [length][op][amount:4]
+ *   TYPE            [length][op][UTF-8 bytes]
+ *   DELETE_CHARS    [length][op][count:varint]
+ *   TEXT_CHUNK      [length][op][transfer:varint][sequence:varint][UTF-8 bytes]
+ *   TEXT_CHUNK_DEFLATE
+ *                   [length][op][transfer:varint][sequence:varint][zlib data]
+ *   TEXT_CHUNK_ACK  [length][op][transfer:varint][sequence:varint]
+ *   SYNC, SYNC_ACK  [length][op][token:varint]
+ *   CHECK_CONNECTION, CHECK_CONNECTION_REPLY
+ *                   [length][op][sequence:4][timestamp:4]
+ *   BATCH           [length][op][frame][frame]...
+ *   everything else [length][op]
+ * </pre>
+ *
+ * Motion and scroll amounts are usually small, so they are written as
+ * zigzag varints: a move of up to 63 pixels on each axis takes one byte
+ * per axis, making the whole frame four bytes. When the varints would
+ * take as many bytes as the fixed-width form (8 for a move, 4 for a
+ * scroll) the fixed-width form is written instead. A decoder tells the
+ * two apart by the payload length alone.
+ *
+ * Long text is sent as a bulk transfer of TEXT_CHUNK frames, each holding
+ * whole characters so it can be typed on its own. The receiver answers
+ * every chunk it has typed with a TEXT_CHUNK_ACK, which the sender uses
+ * for flow control and progress. A chunk the sender found worth
+ * compressing travels as TEXT_CHUNK_DEFLATE, whose text is the zlib
+ * compressed UTF-8; {@link CommandEncoder} writes those frames.
+ *
+ * A BATCH frame groups two or more ordinary frames, each with its own
+ * length prefix, so they travel and are parsed as one unit. Batches do
+ * not nest. {@link FrameDecoder} expands them transparently; decoding a
+ * BATCH with {@link #decode} or {@link #decodeBody} is an error.
+ *
+ * A SYNC asks the receiver to answer with a SYNC_ACK carrying the same
+ * token once it has performed every command sent before the SYNC. The
+ * sender uses it to wait for the computer to catch up, for example for a
+ * new tab to open before typing into it.
+ *
+ * Every frame says how long it is, so a decoder skips a frame whose opcode
+ * it does not know rather than failing; see {@link FrameDecoder}. New
+ * commands can be sent to an older receiver, which ignores them, as long
+ * as the sender does not depend on their effect.
+ *
+ * A CHECK_CONNECTION probe carries a sequence number in parameter1 and the
+ * sender's microsecond clock, truncated to 32 bits, in parameter2. The
+ * receiver answers with a CHECK_CONNECTION_REPLY holding the same two
+ * values, so the sender can subtract the echoed timestamp from its clock
+ * to get the round-trip time.
+ *
+ * @see FrameDecoder
+ */
+public final class RemoteCommandCodec {
+	/** Size of the opcode that follows the length prefix */
+	public static final int OPCODE_LENGTH = 1;
+	/** Largest frame, excluding the length prefix, a decoder will accept */
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private RemoteCommandCodec() {
+	}
+
+	/**
+	 * Returns the number of bytes {@link #encode} will write for the command,
+	 * including the length prefix.
+	 */
+	public static int encodedLength(RemoteCommand rcm) {
+		return encodedLength(rcm.command, rcm.parameter1, rcm.parameter2, rcm.string1);
+	}
+
+	public static int encodedLength(int command, int parameter1, int parameter2,
+			CharSequence text) {
+		int frameLength = OPCODE_LENGTH + payloadLength(command, parameter1, parameter2, text);
+		return varintLength(frameLength) + frameLength;
+	}
+
+	/**
+	 * Returns the payload length for the given opcode, not counting the
+	 * length prefix or the opcode.
+	 * @param text The text carried by a TYPE or TEXT_CHUNK command, ignored otherwise
+	 * @throws IllegalArgumentException for TEXT_CHUNK_DEFLATE, whose length
+	 *         depends on how well the text compresses
+	 */
+	public static int payloadLength(int command, int parameter1, int parameter2,
+			CharSequence text) {
+		switch (command) {
+		case RemoteValues.MOVE_MOUSE_BY:
+			return Math.min(8, varintLength(zigzag(parameter1)) + varintLength(zigzag(parameter2)));
+		case RemoteValues.DELETE_CHARS:
+		case RemoteValues.SYNC:
+		case RemoteValues.SYNC_ACK:
+			return varintLength(parameter1);
+		case RemoteValues.TEXT_CHUNK:
+			return varintLength(parameter1) + varintLength(parameter2) + utf8Length(text);
+		case RemoteValues.TEXT_CHUNK_ACK:
+			return varintLength(parameter1) + varintLength(parameter2);
+		case RemoteValues.CHECK_CONNECTION:
+		case RemoteValues.CHECK_CONNECTION_REPLY:
+			return 8;
+		case RemoteValues.MOUSE_SCROLL:
+		case RemoteValues.MOUSE_SCROLL_PRECISE:
+			return Math.min(4, varintLength(zigzag(parameter1)));
+		case RemoteValues.TYPE:
+			return utf8Length(text);
+		case RemoteValues.TEXT_CHUNK_DEFLATE:
+			throw new IllegalArgumentException("TEXT_CHUNK_DEFLATE is written by CommandEncoder");
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Encodes the command into dst starting at offset.
+	 * @return The offset just past the last byte written
+	 */
+	public static int encode(RemoteCommand rcm, byte[] dst, int offset) {
+		return encode(rcm.command, rcm.parameter1, rcm.parameter2, rcm.string1, dst, offset);
+	}
+
+	/**
+	 * Encodes a command given as primitive fields, so callers on the hot
+	 * path do not need a {@link RemoteCommand} instance. dst must have room
+	 * for {@link #encodedLength(int, int, int, CharSequence)} bytes.
+	 * @return The offset just past the last byte written
+	 */
+	public static int encode(int command, int parameter1, int parameter2, CharSequence text,
+			byte[] dst, int offset) {
+		int payloadLength = payloadLength(command, parameter1, parameter2, text);
+		offset = putVarint(dst, offset, OPCODE_LENGTH + payloadLength);
+		dst[offset++] = (byte) command;
+		switch (command) {
+		case RemoteValues.MOVE_MOUSE_BY:
+			if (payloadLength < 8) {
+				offset = putVarint(dst, offset, zigzag(parameter1));
+				offset = putVarint(dst, offset, zigzag(parameter2));
+			} else {
+				offset = putInt(dst, offset, parameter1);
+				offset = putInt(dst, offset, parameter2);
+			}
+			break;
+		case RemoteValues.CHECK_CONNECTION:
+		case RemoteValues.CHECK_CONNECTION_REPLY:
+			offset = putInt(dst, offset, parameter1);
+			offset = putInt(dst, offset, parameter2);
+			break;
+		case RemoteValues.MOUSE_SCROLL:
+		case RemoteValues.MOUSE_SCROLL_PRECISE:
+			if (payloadLength < 4) {
+				offset = putVarint(dst, offset, zigzag(parameter1));
+			} else {
+				offset = putInt(dst, offset, parameter1);
+			}
+			break;
+		case RemoteValues.TYPE:
+			offset = putUtf8(dst, offset, text, 0, text == null ? 0 : text.length());
+			break;
+		case RemoteValues.DELETE_CHARS:
+		case RemoteValues.SYNC:
+		case RemoteValues.SYNC_ACK:
+			offset = putVarint(dst, offset, parameter1);
+			break;
+		case RemoteValues.TEXT_CHUNK:
+		case RemoteValues.TEXT_CHUNK_ACK:
+			offset = putVarint(dst, offset, parameter1);
+			offset = putVarint(dst, offset, parameter2);
+			if (command == RemoteValues.TEXT_CHUNK) {
+				offset = putUtf8(dst, offset, text, 0, text == null ? 0 : text.length());
+			}
+			break;
+		}
+		return offset;
+	}
+
+	/**
+	 * Returns true if {@link #decodeBody} understands the opcode. BATCH is
+	 * not a command of its own and is not known here.
+	 */
+	public static boolean isKnown(int command) {
+		switch (command) {
+		case RemoteValues.MOVE_MOUSE_BY:
+		case RemoteValues.CHECK_CONNECTION:
+		case RemoteValues.CHECK_CONNECTION_REPLY:
+		case RemoteValues.MOUSE_SCROLL:
+		case RemoteValues.MOUSE_SCROLL_PRECISE:
+		case RemoteValues.TYPE:
+		case RemoteValues.DELETE_CHARS:
+		case RemoteValues.SYNC:
+		case RemoteValues.SYNC_ACK:
+		case RemoteValues.TEXT_CHUNK:
+		case RemoteValues.TEXT_CHUNK_DEFLATE:
+		case RemoteValues.TEXT_CHUNK_ACK:
+		case RemoteValues.MOUSE_LEFT:
+		case RemoteValues.MOUSE_RIGHT:
+		case RemoteValues.ENTER:
+		case RemoteValues.TAB:
+		case RemoteValues.BACKSPACE:
+		case RemoteValues.NEW_TAB:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Decodes a single frame, including its length prefix, from data.
+	 * @throws IllegalArgumentException if the bytes are truncated or malformed
+	 */
+	public static RemoteCommand decode(byte[] data, int offset, int length) {
+		int end = offset + length;
+		long prefix = getVarint(data, offset, end);
+		if (prefix < 0) {
+			throw new IllegalArgumentException("truncated length prefix");
+		}
+		int frameLength = (int) prefix;
+		offset += varintLength(frameLength);
+		require(offset + frameLength, end);
+		if (frameLength < OPCODE_LENGTH) {
+			throw new IllegalArgumentException("empty frame");
+		}
+		RemoteCommand rcm = new RemoteCommand();
+		decodeBody(data[offset], data, offset + OPCODE_LENGTH, frameLength - OPCODE_LENGTH, rcm);
+		return rcm;
+	}
+
+	/**
+	 * Decodes the payload of a frame whose opcode and bounds are already
+	 * known into an existing command.
+	 * @throws IllegalArgumentException if the payload does not match the opcode
+	 */
+	public static void decodeBody(int command, byte[] data, int offset, int length,
+			RemoteCommand into) {
+		into.command = command;
+		into.parameter1 = 0;
+		into.parameter2 = 0;
+		into.string1 = "";
+		int end = offset + length;
+		switch (command) {
+		case RemoteValues.MOVE_MOUSE_BY:
+			if (length == 8) {
+				into.parameter1 = getInt(data, offset);
+				into.parameter2 = getInt(data, offset + 4);
+			} else {
+				long dx = getVarint(data, offset, end);
+				requireComplete(dx);
+				offset += varintLength((int) dx);
+				long dy = getVarint(data, offset, end);
+				requireComplete(dy);
+				offset += varintLength((int) dy);
+				requireEnd(offset, end);
+				into.parameter1 = unzigzag((int) dx);
+				into.parameter2 = unzigzag((int) dy);
+			}
+			break;
+		case RemoteValues.CHECK_CONNECTION:
+		case RemoteValues.CHECK_CONNECTION_REPLY:
+			require(8, length);
+			requireEnd(offset + 8, end);
+			into.parameter1 = getInt(data, offset);
+			into.parameter2 = getInt(data, offset + 4);
+			break;
+		case RemoteValues.MOUSE_SCROLL:
+		case RemoteValues.MOUSE_SCROLL_PRECISE:
+			if (length == 4) {
+				into.parameter1 = getInt(data, offset);
+			} else {
+				long amount = getVarint(data, offset, end);
+				requireComplete(amount);
+				requireEnd(offset + varintLength((int) amount), end);
+				into.parameter1 = unzigzag((int) amount);
+			}
+			break;
+		case RemoteValues.TYPE:
+			into.string1 = new String(data, offset, length, UTF_8);
+			break;
+		case RemoteValues.DELETE_CHARS:
+		case RemoteValues.SYNC:
+		case RemoteValues.SYNC_ACK:
+			long count = getVarint(data, offset, end);
+			requireComplete(count);
+			requireEnd(offset + varintLength((int) count), end);
+			into.parameter1 = (int) count;
+			break;
+		case RemoteValues.TEXT_CHUNK:
+		case RemoteValues.TEXT_CHUNK_DEFLATE:
+		case RemoteValues.TEXT_CHUNK_ACK:
+			long transfer = getVarint(data, offset, end);
+			requireComplete(transfer);
+			offset += varintLength((int) transfer);
+			long sequence = getVarint(data, offset, end);
+			requireComplete(sequence);
+			offset += varintLength((int) sequence);
+			into.parameter1 = (int) transfer;
+			into.parameter2 = (int) sequence;
+			if (command == RemoteValues.TEXT_CHUNK) {
+				into.string1 = new String(data, offset, end - offset, UTF_8);
+			} else if (command == RemoteValues.TEXT_CHUNK_DEFLATE) {
+				into.string1 = inflate(data, offset, end - offset);
+			} else {
+				requireEnd(offset, end);
+			}
+			break;
+		case RemoteValues.MOUSE_LEFT:
+		case RemoteValues.MOUSE_RIGHT:
+		case RemoteValues.ENTER:
+		case RemoteValues.TAB:
+		case RemoteValues.BACKSPACE:
+		case RemoteValues.NEW_TAB:
+			break;
+		default:
+			throw new IllegalArgumentException("unknown command " + command);
+		}
+	}
+
+	public static int putInt(byte[] dst, int offset, int value) {
+		dst[offset] = (byte) (value >>> 24);
+		dst[offset + 1] = (byte) (value >>> 16);
+		dst[offset + 2] = (byte) (value >>> 8);
+		dst[offset + 3] = (byte) value;
+		return offset + 4;
+	}
+
+	public static int getInt(byte[] src, int offset) {
+		return (src[offset] << 24)
+				| ((src[offset + 1] & 0xff) << 16)
+				| ((src[offset + 2] & 0xff) << 8)
+				| (src[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Maps a signed value to an unsigned one so that values close to zero,
+	 * of either sign, become small: 0, -1, 1, -2, 2 map to 0, 1, 2, 3, 4.
+	 */
+	public static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	public static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Returns the number of bytes {@link #putVarint} uses for value, taken as unsigned.
+	 */
+	public static int varintLength(int value) {
+		int length = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Writes value, taken as unsigned, as a base-128 varint, low group first.
+	 * @return The offset just past the last byte written
+	 */
+	public static int putVarint(byte[] dst, int offset, int value) {
+		while ((value & ~0x7f) != 0) {
+			dst[offset++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		dst[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Reads an unsigned varint from src[offset, end). Only the shortest
+	 * encoding of a value is accepted, since callers step over a varint by
+	 * the length {@link #varintLength(int)} gives for its value.
+	 * @return The value, or -1 if the varint is not complete yet
+	 * @throws IllegalArgumentException if the varint is longer than five
+	 *         bytes, holds more than 32 bits, or has needless trailing groups
+	 */
+	public static long getVarint(byte[] src, int offset, int end) {
+		long value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (offset >= end) {
+				return -1;
+			}
+			int b = src[offset++];
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				if (b == 0 && shift > 0) {
+					throw new IllegalArgumentException("varint not minimal");
+				}
+				if (value > 0xffffffffL) {
+					throw new IllegalArgumentException("varint too large");
+				}
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("varint too long");
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode the text as UTF-8.
+	 */
+	public static int utf8Length(CharSequence text) {
+		if (text == null) {
+			return 0;
+		}
+		return utf8Length(text, 0, text.length());
+	}
+
+	public static int utf8Length(CharSequence text, int start, int end) {
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < end
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Writes text[start, end) as UTF-8 without allocating an intermediate
+	 * byte array. Unpaired surrogates are written as three byte sequences,
+	 * matching {@link #utf8Length(CharSequence, int, int)}.
+	 * @return The offset just past the last byte written
+	 */
+	public static int putUtf8(byte[] dst, int offset, CharSequence text, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				dst[offset++] = (byte) c;
+			} else if (c < 0x800) {
+				dst[offset++] = (byte) (0xc0 | (c >> 6));
+				dst[offset++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				dst[offset++] = (byte) (0xf0 | (cp >> 18));
+				dst[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				dst[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				dst[offset++] = (byte) (0x80 | (cp & 0x3f));
+			} else {
+				dst[offset++] = (byte) (0xe0 | (c >> 12));
+				dst[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				dst[offset++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Decompresses zlib data holding UTF-8 text.
+	 * @throws IllegalArgumentException if the data is corrupt or inflates
+	 *         past {@link #MAX_FRAME_LENGTH}
+	 */
+	private static String inflate(byte[] data, int offset, int length) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, length);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+			byte[] buffer = new byte[1024];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("truncated compressed text");
+				}
+				out.write(buffer, 0, n);
+				if (out.size() > MAX_FRAME_LENGTH) {
+					throw new IllegalArgumentException("compressed text too long");
+				}
+			}
+			return new String(out.toByteArray(), UTF_8);
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("corrupt compressed text");
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static void requireComplete(long varint) {
+		if (varint < 0) {
+			throw new IllegalArgumentException("truncated command");
+		}
+	}
+
+	private static void require(int needed, int available) {
+		if (needed > available) {
+			throw new IllegalArgumentException("truncated command");
+		}
+	}
+
+	private static void requireEnd(int offset, int end) {
+		if (offset != end) {
+			throw new IllegalArgumentException("malformed payload");
+		}
+	}
+}
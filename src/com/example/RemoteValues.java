@@ -1,12 +1,30 @@
 package com.example;
 public interface RemoteValues {
     public static final int CHECK_CONNECTION = -1;
+    public static final int CHECK_CONNECTION_REPLY = -2;
+	// Acknowledges TEXT_CHUNK parameter2 of transfer parameter1 once it is typed
+	public static final int TEXT_CHUNK_ACK = -3;
+	// Answers SYNC parameter1 once everything sent before it has been performed
+	public static final int SYNC_ACK = -4;
 	public static final int TYPE = 0;
 	public static final int MOUSE_LEFT = 1;
 	public static final int MOUSE_RIGHT = 2;
 	public static final int MOUSE_SCROLL = 5;
+	// Scroll by parameter1 / SCROLL_UNITS_PER_NOTCH wheel notches
+	public static final int MOUSE_SCROLL_PRECISE = 6;
+	public static final int SCROLL_UNITS_PER_NOTCH = 120;
 	public static final int MOVE_MOUSE_BY = 10;
 	public static final int ENTER = 20;
+	public static final int TAB = 22;
 	public static final int BACKSPACE = 25;
+	// Delete parameter1 characters before the cursor, one plain backspace each
+	public static final int DELETE_CHARS = 26;
     public static final int NEW_TAB = 30;
+	// One piece, numbered parameter2, of bulk text transfer parameter1
+	public static final int TEXT_CHUNK = 35;
+	public static final int TEXT_CHUNK_DEFLATE = 36;
+	// Carries several complete frames as its payload
+	public static final int BATCH = 40;
+	// Asks for a SYNC_ACK carrying the same parameter1
+	public static final int SYNC = 45;
 }
@@ -0,0 +1,95 @@
+package com.example;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent round-trip time samples of a connection and
+ * summarizes them as minimum, mean and 99th percentile. Samples are held
+ * in a fixed ring, so recording one does not allocate; the percentile is
+ * computed on request from a scratch copy.
+ */
+public final class RttEstimator {
+	public static final int DEFAULT_WINDOW = 128;
+
+	private final long[] samples;
+	private final long[] scratch;
+	private int next = 0;
+	private int count = 0;
+	private long sum = 0;
+
+	public RttEstimator() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param window The number of recent samples the summaries cover
+	 */
+	public RttEstimator(int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("window " + window);
+		}
+		samples = new long[window];
+		scratch = new long[window];
+	}
+
+	/**
+	 * Records one round trip.
+	 * @param micros The round-trip time in microseconds
+	 */
+	public synchronized void addSample(long micros) {
+		if (count == samples.length) {
+			sum -= samples[next];
+		} else {
+			count++;
+		}
+		samples[next] = micros;
+		sum += micros;
+		next = (next + 1) % samples.length;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the smallest recent sample in microseconds, or -1 if there are none.
+	 */
+	public synchronized long getMin() {
+		if (count == 0) {
+			return -1;
+		}
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			min = Math.min(min, samples[i]);
+		}
+		return min;
+	}
+
+	/**
+	 * Returns the mean of the recent samples in microseconds, or -1 if there are none.
+	 */
+	public synchronized long getMean() {
+		return count == 0 ? -1 : sum / count;
+	}
+
+	/**
+	 * Returns the given percentile of the recent samples in microseconds,
+	 * using the nearest-rank method, or -1 if there are none.
+	 * @param percentile A value between 0 and 100
+	 */
+	public synchronized long getPercentile(int percentile) {
+		if (count == 0) {
+			return -1;
+		}
+		System.arraycopy(samples, 0, scratch, 0, count);
+		Arrays.sort(scratch, 0, count);
+		int rank = (int) Math.ceil(percentile / 100.0 * count);
+		return scratch[Math.max(0, Math.min(count - 1, rank - 1))];
+	}
+
+	public synchronized void reset() {
+		next = 0;
+		count = 0;
+		sum = 0;
+	}
+}
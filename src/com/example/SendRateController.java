@@ -0,0 +1,112 @@
+package com.example;
+
+/**
+ * Chooses how often cursor motion is sent, based on how quickly the link
+ * actually drains. The sender reports how long each write took and how
+ * many commands were still waiting afterwards; the input path asks
+ * {@link #shouldSend(long)} before producing a new motion command.
+ * Times are taken from the touch samples themselves, such as
+ * MotionEvent.getEventTime(), rather than read from a clock when the
+ * sample is handled, so the intervals match when the finger actually
+ * moved and never jump with the wall clock.
+ *
+ * The interval follows the average write time with some headroom. While
+ * the queue keeps a backlog after writes, the interval backs off
+ * multiplicatively. Once the queue drains, it creeps back down by a
+ * millisecond per write. It always stays within the configured bounds.
+ */
+public final class SendRateController {
+	public static final long DEFAULT_MIN_INTERVAL = 8;  // ms, ~120 Hz
+	public static final long DEFAULT_MAX_INTERVAL = 50; // ms, 20 Hz
+
+	private final long minInterval;
+	private final long maxInterval;
+
+	private long interval;
+	private long lastSend;
+	private boolean sentBefore = false;
+	private long averageWriteNanos = 0;
+
+	public SendRateController() {
+		this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL);
+	}
+
+	/**
+	 * @param minInterval The shortest time between motion sends, in milliseconds
+	 * @param maxInterval The longest time between motion sends, in milliseconds
+	 */
+	public SendRateController(long minInterval, long maxInterval) {
+		if (minInterval < 0 || maxInterval < minInterval) {
+			throw new IllegalArgumentException(minInterval + ".." + maxInterval);
+		}
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		interval = minInterval;
+	}
+
+	/**
+	 * Returns true, and starts a new interval, if enough time has passed
+	 * since the last motion send.
+	 * @param now The sample's event time in milliseconds, from a monotonic clock
+	 */
+	public synchronized boolean shouldSend(long now) {
+		if (sentBefore && now - lastSend < interval) {
+			return false;
+		}
+		sentBefore = true;
+		lastSend = now;
+		return true;
+	}
+
+	/**
+	 * Records a completed write and adjusts the interval.
+	 * @param writeNanos  How long the write and flush took
+	 * @param queueDepth  How many commands were waiting once it finished
+	 */
+	public synchronized void onWriteComplete(long writeNanos, int queueDepth) {
+		if (averageWriteNanos == 0) {
+			averageWriteNanos = writeNanos;
+		} else {
+			averageWriteNanos += (writeNanos - averageWriteNanos) / 8;
+		}
+		long target = averageWriteNanos * 3 / 2 / 1000000;
+
+		long next;
+		if (queueDepth > 0) {
+			next = Math.max(interval + Math.max(1, interval / 4), target);
+		} else {
+			next = Math.max(interval - 1, target);
+		}
+		interval = Math.max(minInterval, Math.min(maxInterval, next));
+	}
+
+	/**
+	 * Returns the current time between motion sends, in milliseconds.
+	 */
+	public synchronized long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Returns the current motion send rate in updates per second.
+	 */
+	public synchronized float getRate() {
+		return interval == 0 ? Float.POSITIVE_INFINITY : 1000f / interval;
+	}
+
+	/**
+	 * Returns the smoothed time a write takes, in milliseconds.
+	 */
+	public synchronized float getAverageWriteMillis() {
+		return averageWriteNanos / 1000000f;
+	}
+
+	/**
+	 * Forgets the link's history, for example after reconnecting.
+	 */
+	public synchronized void reset() {
+		interval = minInterval;
+		sentBefore = false;
+		averageWriteNanos = 0;
+	}
+}
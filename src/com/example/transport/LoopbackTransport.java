@@ -0,0 +1,188 @@
+package com.example.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An in-memory transport. Each LoopbackTransport has a peer, available
+ * from {@link #getPeer()}, and bytes written to one end can be read from
+ * the other. It lets the command pipeline run, and be measured, without
+ * a radio or a network.
+ */
+public class LoopbackTransport implements Transport {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final String name;
+	private final Pipe in;
+	private final Pipe out;
+	private final LoopbackTransport peer;
+
+	/**
+	 * Creates a connected pair of loopback transports.
+	 * @param name        The name both ends report
+	 * @param bufferSize  How many bytes may be in flight in each direction
+	 *                    before writes block
+	 */
+	public LoopbackTransport(String name, int bufferSize) {
+		this.name = name;
+		in = new Pipe(bufferSize);
+		out = new Pipe(bufferSize);
+		peer = new LoopbackTransport(this);
+	}
+
+	public LoopbackTransport(String name) {
+		this(name, DEFAULT_BUFFER_SIZE);
+	}
+
+	private LoopbackTransport(LoopbackTransport peer) {
+		name = peer.name;
+		in = peer.out;
+		out = peer.in;
+		this.peer = peer;
+	}
+
+	/**
+	 * Returns the other end of this transport.
+	 */
+	public LoopbackTransport getPeer() {
+		return peer;
+	}
+
+	public void connect() {
+		// Both ends are connected from the start
+	}
+
+	public InputStream getInputStream() {
+		return in.input;
+	}
+
+	public OutputStream getOutputStream() {
+		return out.output;
+	}
+
+	/**
+	 * Closes both directions, so reads on either end see end of stream and
+	 * writes fail.
+	 */
+	public void close() {
+		in.close();
+		out.close();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getAddress() {
+		return "loopback:" + name;
+	}
+
+	/**
+	 * A bounded, blocking, single-direction byte buffer.
+	 */
+	private static class Pipe {
+		private final byte[] buffer;
+		private int head = 0;
+		private int count = 0;
+		private boolean closed = false;
+
+		final InputStream input = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				synchronized (Pipe.this) {
+					return count;
+				}
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream output = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		Pipe(int size) {
+			buffer = new byte[size];
+		}
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (count == 0 && !closed) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (count == 0) {
+				return -1;
+			}
+			int n = Math.min(len, count);
+			int first = Math.min(n, buffer.length - head);
+			System.arraycopy(buffer, head, b, off, first);
+			System.arraycopy(buffer, 0, b, off + first, n - first);
+			head = (head + n) % buffer.length;
+			count -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				try {
+					while (count == buffer.length && !closed) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				if (closed) {
+					throw new IOException("pipe closed");
+				}
+				int tail = (head + count) % buffer.length;
+				int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+				System.arraycopy(b, off, buffer, tail, n);
+				count += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+}
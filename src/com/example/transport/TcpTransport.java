@@ -0,0 +1,86 @@
+package com.example.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Carries the command stream over a plain TCP socket, for example to a
+ * server on the same Wi-Fi network. Nagle's algorithm is disabled, since
+ * every write is a latency-sensitive batch of input.
+ */
+public class TcpTransport implements Transport {
+	public static final int DEFAULT_PORT = 5172;
+	private static final int CONNECT_TIMEOUT = 5000; // ms
+
+	private final String host;
+	private final int port;
+	private volatile Socket socket;
+	// Set by close(), which may come before connect() has made the socket
+	private volatile boolean closed;
+
+	/**
+	 * @param host  The server's host name or address
+	 * @param port  The server's port
+	 */
+	public TcpTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Wraps a socket that is already connected, such as one returned by
+	 * ServerSocket.accept(). {@link #connect()} then does nothing.
+	 */
+	public TcpTransport(Socket socket) throws IOException {
+		host = socket.getInetAddress().getHostAddress();
+		port = socket.getPort();
+		socket.setTcpNoDelay(true);
+		this.socket = socket;
+	}
+
+	public void connect() throws IOException {
+		if (socket != null && socket.isConnected()) {
+			return;
+		}
+		Socket socket = new Socket();
+		this.socket = socket;
+		if (closed) {
+			socket.close();
+			throw new IOException("Transport closed");
+		}
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		Socket socket = this.socket;
+		if (socket != null) {
+			socket.close();
+		}
+	}
+
+	public String getName() {
+		return host;
+	}
+
+	public String getAddress() {
+		return host + ":" + port;
+	}
+
+	@Override
+	public String toString() {
+		return "TCP " + host + ":" + port;
+	}
+}
@@ -0,0 +1,49 @@
+package com.example.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to the server, independent of how it is
+ * carried. The command service drives one transport per connection:
+ * {@link #connect()} on the connect thread, then reads and writes on the
+ * connection's own threads, then {@link #close()} from whichever thread
+ * decides the connection is over.
+ */
+public interface Transport {
+	/**
+	 * Opens the connection. This is a blocking call and will only return
+	 * on a successful connection or an exception.
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * Returns the stream of bytes received from the server. Only valid
+	 * after {@link #connect()} has returned.
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Returns the stream of bytes sent to the server. Only valid after
+	 * {@link #connect()} has returned.
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Closes the connection. May be called from any thread, and unblocks
+	 * a pending {@link #connect()} or read; a connect() that has not yet
+	 * begun fails instead of opening the connection.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Returns a human readable name for the remote end.
+	 */
+	String getName();
+
+	/**
+	 * Returns an address that identifies the remote end, for reconnecting.
+	 */
+	String getAddress();
+}
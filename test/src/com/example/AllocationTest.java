@@ -0,0 +1,120 @@
+package com.example;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the steady-state path of a mouse move, from touch sample to
+ * encoded bytes, does not allocate. Allocation is measured with the
+ * HotSpot per-thread allocation counter, so the tests are skipped on a
+ * JVM without one.
+ */
+public class AllocationTest {
+	private static final int EVENTS = 1000000;
+	// Slack for the measurement itself, far below one allocation per event
+	private static final long TOLERANCE = 4096;
+
+	private com.sun.management.ThreadMXBean threads;
+
+	// Discards what is written, without allocating
+	private static final OutputStream SINK = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Before
+	public void setUp() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	private long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@Test
+	public void encodingMovesDoesNotAllocate() throws IOException {
+		CommandEncoder encoder = new CommandEncoder();
+		encodeMoves(encoder, EVENTS); // warm up
+		long before = allocated();
+		encodeMoves(encoder, EVENTS);
+		long bytes = allocated() - before;
+		assertTrue(bytes + " bytes for " + EVENTS + " moves", bytes < TOLERANCE);
+	}
+
+	private static void encodeMoves(CommandEncoder encoder, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			encoder.putMove(i % 64 - 32, 32 - i % 64);
+			encoder.writeTo(SINK);
+		}
+	}
+
+	@Test
+	public void queueingAndSendingMovesDoesNotAllocate() throws Exception {
+		CommandQueue queue = new CommandQueue();
+		CommandEncoder encoder = new CommandEncoder();
+		encoder.setBatchLimits(CommandEncoder.DEFAULT_CAPACITY / 2, 0);
+		RemoteCommand command = new RemoteCommand();
+		StringBuilder text = new StringBuilder();
+		sendMoves(queue, encoder, command, text, EVENTS);
+		long before = allocated();
+		sendMoves(queue, encoder, command, text, EVENTS);
+		long bytes = allocated() - before;
+		assertTrue(bytes + " bytes for " + EVENTS + " moves", bytes < TOLERANCE);
+	}
+
+	private static void sendMoves(CommandQueue queue, CommandEncoder encoder,
+			RemoteCommand command, StringBuilder text, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			queue.offer(RemoteValues.MOVE_MOUSE_BY, 3, -2, null);
+			if (i % 2 == 1) {
+				queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null);
+			}
+			while (queue.take(command, text, 0)) {
+				encoder.put(command.command, command.parameter1, command.parameter2, text);
+			}
+			encoder.writeTo(SINK);
+		}
+	}
+
+	@Test
+	public void recognisingDragsDoesNotAllocate() {
+		final int[] sent = new int[1];
+		GestureEngine engine = new GestureEngine(new GestureEngine.Listener() {
+			public void onCommand(int command, int parameter1, int parameter2) {
+				sent[0]++;
+			}
+		}, new SendRateController());
+		engine.setAccelerationCurve(AccelerationCurve.DEFAULT);
+		engine.setPredictionHorizon(20);
+		drag(engine, 0);
+		long before = allocated();
+		drag(engine, EVENTS);
+		long bytes = allocated() - before;
+		assertTrue("no commands", sent[0] > 0);
+		assertTrue(bytes + " bytes for " + EVENTS + " samples", bytes < TOLERANCE);
+	}
+
+	private static void drag(GestureEngine engine, long start) {
+		engine.onSample(1, GestureEngine.ACTION_DOWN, 100, 100, start);
+		for (int i = 1; i < EVENTS; i++) {
+			float t = i * 0.01f;
+			engine.onSample(1, GestureEngine.ACTION_MOVE, 100 + 50 * (float) Math.sin(t),
+					100 + 50 * (float) Math.cos(t), start + i * 4);
+		}
+		engine.onSample(1, GestureEngine.ACTION_UP, 100, 100, start + EVENTS * 4L);
+	}
+}
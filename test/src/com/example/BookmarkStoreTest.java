@@ -0,0 +1,155 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Changes bookmarks and reloads them from the log: the replay, a line
+ * torn by a crash, when the log is compacted, re-adding a deleted
+ * bookmark and importing the plain list of earlier versions.
+ */
+public class BookmarkStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static int lines(File file) throws IOException {
+		RandomAccessFile raw = new RandomAccessFile(file, "r");
+		try {
+			int lines = 0;
+			int b;
+			while ((b = raw.read()) != -1) {
+				if (b == '\n') {
+					lines++;
+				}
+			}
+			return lines;
+		} finally {
+			raw.close();
+		}
+	}
+
+	private static void append(File file, String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(text.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static BookmarkStore reload(File file) throws IOException {
+		BookmarkStore store = new BookmarkStore(file);
+		store.load();
+		return store;
+	}
+
+	@Test
+	public void replaysAddsAndDeletesInOrder() throws IOException {
+		File file = new File(folder.getRoot(), "bookmarks.log");
+		BookmarkStore store = new BookmarkStore(file);
+		store.load();
+		assertTrue(store.add("http://a.example/"));
+		assertTrue(store.add("http://b.example/café"));
+		assertTrue(store.add("http://c.example/"));
+		assertFalse(store.add("http://a.example/"));
+		assertTrue(store.remove("http://b.example/café"));
+		assertFalse(store.remove("http://b.example/café"));
+		assertEquals(4, lines(file));
+
+		BookmarkStore reloaded = reload(file);
+		assertEquals(Arrays.asList("http://a.example/", "http://c.example/"), reloaded.getAll());
+		assertTrue(reloaded.contains("http://c.example/"));
+		assertFalse(reloaded.contains("http://b.example/café"));
+	}
+
+	@Test
+	public void dropsALineTornByACrash() throws IOException {
+		File file = new File(folder.getRoot(), "bookmarks.log");
+		BookmarkStore store = new BookmarkStore(file);
+		store.add("http://a.example/");
+		append(file, "+http://half.exa");
+
+		BookmarkStore reloaded = reload(file);
+		assertEquals(Arrays.asList("http://a.example/"), reloaded.getAll());
+		// Compacted away, so the next add starts on a line of its own
+		assertEquals(1, lines(file));
+		reloaded.add("http://b.example/");
+		assertEquals(Arrays.asList("http://a.example/", "http://b.example/"), reload(file).getAll());
+	}
+
+	@Test
+	public void compactsOnceTheLogOutgrowsTheBookmarks() throws IOException {
+		File file = new File(folder.getRoot(), "bookmarks.log");
+		BookmarkStore store = new BookmarkStore(file);
+		store.add("http://kept.example/");
+		// The log may hold this many lines with one bookmark
+		int limit = 2 * 1 + BookmarkStore.COMPACT_SLACK;
+		while (lines(file) + 2 <= limit) {
+			store.add("http://churn.example/");
+			store.remove("http://churn.example/");
+		}
+		assertEquals(limit - 1, lines(file));
+
+		// The next delete takes the log past the limit
+		store.add("http://churn.example/");
+		store.remove("http://churn.example/");
+		assertEquals(1, lines(file));
+		assertEquals(Arrays.asList("http://kept.example/"), reload(file).getAll());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void loadCompactsALogThatIsTooLong() throws IOException {
+		File file = new File(folder.getRoot(), "bookmarks.log");
+		StringBuilder log = new StringBuilder("+http://kept.example/\n");
+		for (int i = 0; i < BookmarkStore.COMPACT_SLACK; i++) {
+			log.append("+http://churn.example/\n-http://churn.example/\n");
+		}
+		append(file, log.toString());
+
+		assertEquals(Arrays.asList("http://kept.example/"), reload(file).getAll());
+		assertEquals(1, lines(file));
+	}
+
+	@Test
+	public void reAddingADeletedBookmarkPutsItLast() throws IOException {
+		File file = new File(folder.getRoot(), "bookmarks.log");
+		BookmarkStore store = new BookmarkStore(file);
+		store.add("http://a.example/");
+		store.add("http://b.example/");
+		store.remove("http://a.example/");
+		assertTrue(store.add("http://a.example/"));
+
+		assertEquals(Arrays.asList("http://b.example/", "http://a.example/"), store.getAll());
+		assertEquals(store.getAll(), reload(file).getAll());
+	}
+
+	@Test
+	public void importsTheListOfEarlierVersions() throws IOException {
+		File file = new File(folder.getRoot(), "bookmarks.log");
+		File legacy = new File(folder.getRoot(), "bookmarks.txt");
+		append(legacy, "http://a.example/\r\nhttp://b.example/\n\nhttp://a.example/\nhttp://c.example/");
+		BookmarkStore store = new BookmarkStore(file);
+		store.add("http://b.example/");
+
+		assertEquals(2, store.importLines(legacy));
+		assertEquals(Arrays.asList("http://b.example/", "http://a.example/", "http://c.example/"),
+				reload(file).getAll());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsALineBreakInAUrl() throws IOException {
+		new BookmarkStore(new File(folder.getRoot(), "bookmarks.log")).add("http://a/\n-http://b/");
+	}
+}
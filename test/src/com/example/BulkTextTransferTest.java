@@ -0,0 +1,183 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Runs bulk text transfers against a {@link CommandQueue}, playing the
+ * receiver by taking chunks off the queue and acknowledging them: the
+ * window is respected, a chunk the full queue refused is offered again on
+ * the next acknowledgement, cancelling stops the chunks, and input queued
+ * after a transfer is taken after its last chunk.
+ */
+public class BulkTextTransferTest {
+	/** Collects what the transfer reports. */
+	private static final class Recorder implements BulkTextTransfer.Listener {
+		final List<String> events = new ArrayList<String>();
+
+		public void onProgress(int transfer, int acknowledged, int total) {
+			events.add(transfer + " " + acknowledged + "/" + total);
+		}
+
+		public void onFinished(int transfer, boolean completed) {
+			events.add(transfer + (completed ? " done" : " stopped"));
+		}
+	}
+
+	private static String text(int length) {
+		StringBuilder text = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			text.append((char) ('a' + i % 26));
+		}
+		return text.toString();
+	}
+
+	/** Takes every command that is ready, acknowledging the chunks. */
+	private static String drain(CommandQueue queue, BulkTextTransfer transfer, StringBuilder typed)
+			throws InterruptedException {
+		StringBuilder taken = new StringBuilder();
+		RemoteCommand command = new RemoteCommand();
+		while (queue.take(command, 0)) {
+			taken.append(command.command).append(' ');
+			if (command.string1 != null) {
+				typed.append(command.string1);
+			}
+			if (command.command == RemoteValues.TEXT_CHUNK) {
+				transfer.onAck(command.parameter1, command.parameter2);
+			}
+		}
+		return taken.toString();
+	}
+
+	@Test
+	public void keepsAtMostAWindowOfChunksQueued() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		Recorder recorder = new Recorder();
+		BulkTextTransfer transfer = new BulkTextTransfer(queue, recorder);
+		String text = text(5 * BulkTextTransfer.CHUNK_LENGTH + 10);
+		int number = transfer.start(text);
+		assertEquals(BulkTextTransfer.WINDOW, queue.size());
+
+		StringBuilder typed = new StringBuilder();
+		drain(queue, transfer, typed);
+		assertEquals(text, typed.toString());
+		assertFalse(transfer.isActive());
+		assertEquals(7, recorder.events.size());
+		assertEquals(number + " " + text.length() + "/" + text.length(), recorder.events.get(5));
+		assertEquals(number + " done", recorder.events.get(6));
+	}
+
+	@Test
+	public void offersARefusedChunkAgainOnTheNextAck() throws InterruptedException {
+		// Room for the transfer's place, one chunk and nothing else
+		CommandQueue queue = new CommandQueue(2, CommandQueue.FULL_DROP_NEWEST);
+		Recorder recorder = new Recorder();
+		BulkTextTransfer transfer = new BulkTextTransfer(queue, recorder);
+		String text = text(3 * BulkTextTransfer.CHUNK_LENGTH);
+		transfer.start(text);
+		assertEquals(1, queue.size());
+		assertEquals(1, queue.getDroppedCount());
+
+		StringBuilder typed = new StringBuilder();
+		drain(queue, transfer, typed);
+		assertEquals(text, typed.toString());
+		assertTrue(recorder.events.get(recorder.events.size() - 1).endsWith(" done"));
+	}
+
+	@Test
+	public void ignoresStaleAndOutOfOrderAcks() {
+		CommandQueue queue = new CommandQueue();
+		Recorder recorder = new Recorder();
+		BulkTextTransfer transfer = new BulkTextTransfer(queue, recorder);
+		int number = transfer.start(text(4 * BulkTextTransfer.CHUNK_LENGTH));
+
+		transfer.onAck(number, 1);
+		transfer.onAck(number + 1, 0);
+		assertTrue(recorder.events.isEmpty());
+		transfer.onAck(number, 0);
+		assertEquals(number + " " + BulkTextTransfer.CHUNK_LENGTH + "/"
+				+ 4 * BulkTextTransfer.CHUNK_LENGTH, recorder.events.get(0));
+	}
+
+	@Test
+	public void cancelStopsQueueingChunks() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		Recorder recorder = new Recorder();
+		BulkTextTransfer transfer = new BulkTextTransfer(queue, recorder);
+		int number = transfer.start(text(10 * BulkTextTransfer.CHUNK_LENGTH));
+		transfer.cancel(number);
+		assertFalse(transfer.isActive());
+		assertEquals(number + " stopped", recorder.events.get(0));
+
+		// The chunks already queued still go; none follow them
+		StringBuilder typed = new StringBuilder();
+		drain(queue, transfer, typed);
+		assertEquals(BulkTextTransfer.WINDOW * BulkTextTransfer.CHUNK_LENGTH, typed.length());
+		assertEquals(1, recorder.events.size());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void inputQueuedAfterATransferWaitsForItsLastChunk() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		BulkTextTransfer transfer = new BulkTextTransfer(queue, new Recorder());
+		String text = text(3 * BulkTextTransfer.CHUNK_LENGTH);
+		transfer.start(text);
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+		queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null);
+		assertEquals(BulkTextTransfer.WINDOW, queue.readyCount());
+
+		StringBuilder typed = new StringBuilder();
+		int chunk = RemoteValues.TEXT_CHUNK;
+		assertEquals(chunk + " " + chunk + " " + chunk + " " + RemoteValues.ENTER + " "
+				+ RemoteValues.MOUSE_LEFT + " ", drain(queue, transfer, typed));
+		assertEquals(text, typed.toString());
+	}
+
+	@Test
+	public void motionIsNotHeldByATransfer() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		BulkTextTransfer transfer = new BulkTextTransfer(queue, new Recorder());
+		transfer.start(text(3 * BulkTextTransfer.CHUNK_LENGTH));
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 4, 5, null);
+
+		RemoteCommand command = new RemoteCommand();
+		assertTrue(queue.take(command, 0));
+		assertTrue(queue.take(command, 0));
+		assertTrue(queue.take(command, 0));
+		assertEquals(RemoteValues.MOVE_MOUSE_BY, command.command);
+		assertFalse(queue.take(command, 0));
+	}
+
+	@Test
+	public void transfersStartedTogetherRunInTurn() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		Recorder recorder = new Recorder();
+		BulkTextTransfer transfer = new BulkTextTransfer(queue, recorder);
+		String first = text(3 * BulkTextTransfer.CHUNK_LENGTH);
+		int firstNumber = transfer.start(first);
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+		int cancelled = transfer.start("never typed " + first);
+		queue.offer(RemoteValues.TAB, 0, 0, null);
+		String second = text(BulkTextTransfer.CHUNK_LENGTH + 1).toUpperCase();
+		int secondNumber = transfer.start(second);
+		queue.offer(RemoteValues.BACKSPACE, 0, 0, null);
+		transfer.cancel(cancelled);
+
+		StringBuilder typed = new StringBuilder();
+		int chunk = RemoteValues.TEXT_CHUNK;
+		assertEquals(chunk + " " + chunk + " " + chunk + " " + RemoteValues.ENTER + " "
+				+ RemoteValues.TAB + " " + chunk + " " + chunk + " "
+				+ RemoteValues.BACKSPACE + " ", drain(queue, transfer, typed));
+		assertEquals(first + second, typed.toString());
+		assertEquals(cancelled + " stopped", recorder.events.get(0));
+		assertTrue(recorder.events.contains(firstNumber + " done"));
+		assertEquals(secondNumber + " done", recorder.events.get(recorder.events.size() - 1));
+	}
+}
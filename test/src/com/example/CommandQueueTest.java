@@ -0,0 +1,248 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Offers commands to a {@link CommandQueue} and checks the order they are
+ * taken in: the lanes' priorities, motion flushed ahead of a click, and
+ * what each full-queue policy gives up, including that cursor motion is
+ * never lost to an overflow. The merge counter must count each move or
+ * scroll added to a waiting delta, and nothing else.
+ */
+public class CommandQueueTest {
+	/** Takes everything ready, as "command p1 p2" strings. */
+	private static List<String> drain(CommandQueue queue) throws InterruptedException {
+		List<String> taken = new ArrayList<String>();
+		RemoteCommand command = new RemoteCommand();
+		while (queue.take(command, 0)) {
+			taken.add(command.command + " " + command.parameter1 + " " + command.parameter2);
+		}
+		return taken;
+	}
+
+	private static String c(int command, int parameter1, int parameter2) {
+		return command + " " + parameter1 + " " + parameter2;
+	}
+
+	private static String c(int command) {
+		return c(command, 0, 0);
+	}
+
+	/** Sums the MOVE_MOUSE_BY deltas taken, as {dx, dy}. */
+	private static int[] travel(List<String> taken) {
+		int[] total = new int[2];
+		for (String command : taken) {
+			String[] fields = command.split(" ");
+			if (Integer.parseInt(fields[0]) == RemoteValues.MOVE_MOUSE_BY) {
+				total[0] += Integer.parseInt(fields[1]);
+				total[1] += Integer.parseInt(fields[2]);
+			}
+		}
+		return total;
+	}
+
+	@Test
+	public void inputGoesFirstAndProbesLast() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		queue.offer(RemoteValues.CHECK_CONNECTION, 1, 2, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 3, 4, null);
+		// The move happened first, so it is flushed ahead of the click
+		queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null);
+		queue.offer(RemoteValues.MOUSE_SCROLL, 5, 0, null);
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(c(RemoteValues.MOVE_MOUSE_BY, 3, 4));
+		expected.add(c(RemoteValues.MOUSE_LEFT));
+		expected.add(c(RemoteValues.MOUSE_SCROLL, 5, 0));
+		expected.add(c(RemoteValues.ENTER));
+		expected.add(c(RemoteValues.CHECK_CONNECTION, 1, 2));
+		assertEquals(expected, drain(queue));
+	}
+
+	@Test
+	public void pendingMotionWaitsBehindInput() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, 1, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 2, 2, null);
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(c(RemoteValues.ENTER));
+		expected.add(c(RemoteValues.MOVE_MOUSE_BY, 3, 3));
+		assertEquals(expected, drain(queue));
+	}
+
+	@Test
+	public void clickLandsWhereTheCursorWasLeft() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 10, 0, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 5, 0, null);
+		queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, -7, 0, null);
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(c(RemoteValues.MOVE_MOUSE_BY, 15, 0));
+		expected.add(c(RemoteValues.MOUSE_LEFT));
+		expected.add(c(RemoteValues.MOVE_MOUSE_BY, -7, 0));
+		assertEquals(expected, drain(queue));
+	}
+
+	@Test
+	public void gatedMotionWaitsForARelease() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		queue.setMotionGated(true);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, 0, null);
+		queue.offer(RemoteValues.MOUSE_RIGHT, 0, 0, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 2, 0, null);
+		assertEquals(2, queue.readyCount());
+		assertEquals(2, drain(queue).size());
+
+		queue.releaseMotion();
+		assertEquals(1, queue.readyCount());
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 3, 0, null);
+		List<String> taken = drain(queue);
+		assertEquals(1, taken.size());
+		assertEquals(c(RemoteValues.MOVE_MOUSE_BY, 5, 0), taken.get(0));
+	}
+
+	@Test
+	public void dropNewestRejectsTheOfferedCommand() throws InterruptedException {
+		CommandQueue queue = new CommandQueue(3, CommandQueue.FULL_DROP_NEWEST);
+		assertTrue(queue.offer(RemoteValues.ENTER, 0, 0, null));
+		assertTrue(queue.offer(RemoteValues.TAB, 0, 0, null));
+		assertTrue(queue.offer(RemoteValues.BACKSPACE, 0, 0, null));
+		assertFalse(queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null));
+		assertEquals(1, queue.getDroppedCount());
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(c(RemoteValues.ENTER));
+		expected.add(c(RemoteValues.TAB));
+		expected.add(c(RemoteValues.BACKSPACE));
+		assertEquals(expected, drain(queue));
+	}
+
+	@Test
+	public void dropOldestEvictsTheLongestWaiting() throws InterruptedException {
+		CommandQueue queue = new CommandQueue(3, CommandQueue.FULL_DROP_OLDEST);
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+		queue.offer(RemoteValues.TAB, 0, 0, null);
+		queue.offer(RemoteValues.BACKSPACE, 0, 0, null);
+		assertTrue(queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null));
+		assertEquals(1, queue.getDroppedCount());
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(c(RemoteValues.TAB));
+		expected.add(c(RemoteValues.BACKSPACE));
+		expected.add(c(RemoteValues.MOUSE_LEFT));
+		assertEquals(expected, drain(queue));
+	}
+
+	@Test
+	public void dropOldestKeepsEveryPixelOfMotion() throws InterruptedException {
+		CommandQueue queue = new CommandQueue(4, CommandQueue.FULL_DROP_OLDEST);
+		// Drag-click-drag with nothing taken: the FIFO overflows many times
+		int dx = 0;
+		int dy = 0;
+		for (int i = 1; i <= 40; i++) {
+			queue.offer(RemoteValues.MOVE_MOUSE_BY, i, -2 * i, null);
+			dx += i;
+			dy -= 2 * i;
+			queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null);
+		}
+		assertTrue(queue.getDroppedCount() > 0);
+		assertTrue(queue.getMergedCount() > 0);
+
+		List<String> taken = drain(queue);
+		int[] total = travel(taken);
+		assertEquals(dx, total[0]);
+		assertEquals(dy, total[1]);
+		assertEquals(c(RemoteValues.MOUSE_LEFT), taken.get(taken.size() - 1));
+	}
+
+	@Test
+	public void dropOldestRejectsWhenOnlyMotionIsLeft() throws InterruptedException {
+		CommandQueue queue = new CommandQueue(2, CommandQueue.FULL_DROP_OLDEST);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, 1, null);
+		queue.offer(RemoteValues.MOUSE_SCROLL, 2, 0, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 3, 3, null);
+		// Both slots hold motion now; the click finds nothing to evict
+		assertFalse(queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null));
+		assertEquals(1, queue.getDroppedCount());
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(c(RemoteValues.MOVE_MOUSE_BY, 1, 1));
+		expected.add(c(RemoteValues.MOUSE_SCROLL, 2, 0));
+		expected.add(c(RemoteValues.MOVE_MOUSE_BY, 3, 3));
+		assertEquals(expected, drain(queue));
+	}
+
+	@Test
+	public void dropOldestNeverEvictsEncodedFrames() throws InterruptedException {
+		CommandQueue queue = new CommandQueue(2, CommandQueue.FULL_DROP_OLDEST);
+		queue.offerFrames(new byte[] { 1, (byte) RemoteValues.ENTER });
+		queue.offer(RemoteValues.TAB, 0, 0, null);
+		queue.offer(RemoteValues.BACKSPACE, 0, 0, null);
+
+		RemoteCommand command = new RemoteCommand();
+		assertTrue(queue.take(command, 0));
+		assertEquals(CommandQueue.ENCODED_FRAMES, command.command);
+		assertEquals(2, command.parameter1);
+		assertEquals(RemoteValues.ENTER, queue.getTakenFrames()[1]);
+		assertTrue(queue.take(command, 0));
+		assertEquals(RemoteValues.BACKSPACE, command.command);
+	}
+
+	@Test
+	public void countsEveryMotionMergedIntoAWaitingDelta() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		for (int i = 0; i < 10; i++) {
+			queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, -1, null);
+		}
+		assertEquals(9, queue.getMergedCount());
+		// Another kind of motion starts a new delta rather than merging
+		queue.offer(RemoteValues.MOUSE_SCROLL, 2, 0, null);
+		queue.offer(RemoteValues.MOUSE_SCROLL, 3, 0, null);
+		queue.offer(RemoteValues.MOUSE_SCROLL_PRECISE, 4, 0, null);
+		assertEquals(10, queue.getMergedCount());
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(c(RemoteValues.MOVE_MOUSE_BY, 10, -10));
+		expected.add(c(RemoteValues.MOUSE_SCROLL, 5, 0));
+		expected.add(c(RemoteValues.MOUSE_SCROLL_PRECISE, 4, 0));
+		assertEquals(expected, drain(queue));
+		assertEquals(0, queue.getDroppedCount());
+	}
+
+	@Test
+	public void motionIsNotMergedAcrossDiscreteInput() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, 0, null);
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, 0, null);
+		queue.offer(RemoteValues.TYPE, 0, 0, "a");
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, 0, null);
+		assertEquals(0, queue.getMergedCount());
+		assertEquals(5, drain(queue).size());
+	}
+
+	@Test
+	public void motionTakenAlreadyIsNotMergedInto() throws InterruptedException {
+		CommandQueue queue = new CommandQueue();
+		RemoteCommand command = new RemoteCommand();
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, 0, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, 0, null);
+		assertTrue(queue.take(command, 0));
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 5, 0, null);
+		assertTrue(queue.take(command, 0));
+		assertEquals(5, command.parameter1);
+		assertEquals(1, queue.getMergedCount());
+	}
+}
@@ -0,0 +1,176 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Replays touch traces through a {@link GestureEngine} and checks where
+ * the cursor ends up: slow drags must not lose their sub-pixel motion, a
+ * flat curve must move the cursor exactly as far as the finger, and
+ * acceleration must scale fast swipes without disturbing slow ones.
+ */
+public class GestureEngineTraceTest {
+	// A touch screen's sampling period, in milliseconds
+	private static final long SAMPLE_PERIOD = 4;
+
+	/** Collects the commands the engine emits. */
+	private static final class Recorder implements GestureEngine.Listener {
+		final List<int[]> commands = new ArrayList<int[]>();
+		int totalDx = 0;
+		int totalDy = 0;
+
+		public void onCommand(int command, int parameter1, int parameter2) {
+			commands.add(new int[] { command, parameter1, parameter2 });
+			if (command == RemoteValues.MOVE_MOUSE_BY) {
+				totalDx += parameter1;
+				totalDy += parameter2;
+			}
+		}
+	}
+
+	/**
+	 * Replays a one-finger trace: DOWN at the first point, MOVE through the
+	 * rest and UP where the last one was. Every second MOVE also carries the
+	 * sample before it as history, as a batched MotionEvent would.
+	 */
+	private static Recorder replay(GestureEngine engine, Recorder recorder, float[] xs, float[] ys) {
+		long t = 1000;
+		engine.onSample(1, GestureEngine.ACTION_DOWN, xs[0], ys[0], t);
+		for (int i = 1; i < xs.length; i++) {
+			t += SAMPLE_PERIOD;
+			if (i % 2 == 0) {
+				engine.addHistory(1, xs[i - 1], ys[i - 1], t - SAMPLE_PERIOD);
+			} else if (i + 1 < xs.length) {
+				continue;
+			}
+			engine.onSample(1, GestureEngine.ACTION_MOVE, xs[i], ys[i], t);
+		}
+		engine.onSample(1, GestureEngine.ACTION_UP, xs[xs.length - 1], ys[ys.length - 1], t);
+		return recorder;
+	}
+
+	private static GestureEngine engine(Recorder recorder, AccelerationCurve curve) {
+		GestureEngine engine = new GestureEngine(recorder, new SendRateController());
+		engine.setAccelerationCurve(curve);
+		return engine;
+	}
+
+	/** A straight drag from (100, 200) with a constant step per sample. */
+	private static float[][] line(int samples, float stepX, float stepY) {
+		float[] xs = new float[samples];
+		float[] ys = new float[samples];
+		for (int i = 0; i < samples; i++) {
+			xs[i] = 100 + i * stepX;
+			ys[i] = 200 + i * stepY;
+		}
+		return new float[][] { xs, ys };
+	}
+
+	@Test
+	public void slowDragKeepsSubPixelMotion() {
+		// 0.3 px per sample never makes a whole pixel on its own
+		float[][] trace = line(2001, 0.3f, -0.3f);
+		Recorder recorder = new Recorder();
+		replay(engine(recorder, AccelerationCurve.FLAT), recorder, trace[0], trace[1]);
+
+		assertEquals(600, recorder.totalDx, 1);
+		assertEquals(-600, recorder.totalDy, 1);
+	}
+
+	@Test
+	public void flatCurveFollowsTheFingerOnAJitteryTrace() {
+		// A hand-held drag: drifting speed, direction changes and sensor noise
+		Random random = new Random(42);
+		int samples = 1500;
+		float[] xs = new float[samples];
+		float[] ys = new float[samples];
+		float x = 300;
+		float y = 500;
+		for (int i = 0; i < samples; i++) {
+			float speed = 2 + 1.5f * (float) Math.sin(i / 40.0);
+			double angle = i / 150.0;
+			x += speed * (float) Math.cos(angle) + (random.nextFloat() - 0.5f) * 0.8f;
+			y += speed * (float) Math.sin(angle) + (random.nextFloat() - 0.5f) * 0.8f;
+			xs[i] = x;
+			ys[i] = y;
+		}
+		Recorder recorder = new Recorder();
+		replay(engine(recorder, AccelerationCurve.FLAT), recorder, xs, ys);
+
+		assertEquals(xs[samples - 1] - xs[0], recorder.totalDx, 1);
+		assertEquals(ys[samples - 1] - ys[0], recorder.totalDy, 1);
+	}
+
+	@Test
+	public void accelerationScalesFastSwipesOnly() {
+		// 0.01 px/ms: the curve is all but flat
+		float[][] slow = line(2001, 0.04f, 0);
+		Recorder slowRecorder = new Recorder();
+		replay(engine(slowRecorder, AccelerationCurve.DEFAULT), slowRecorder, slow[0], slow[1]);
+		assertEquals(80, slowRecorder.totalDx, 1);
+
+		// 4 px/ms: well up the curve, but below its cap
+		float[][] fast = line(51, 16, 0);
+		Recorder fastRecorder = new Recorder();
+		replay(engine(fastRecorder, AccelerationCurve.DEFAULT), fastRecorder, fast[0], fast[1]);
+		float travel = 50 * 16;
+		float gain = AccelerationCurve.DEFAULT.getGain(16f / SAMPLE_PERIOD);
+		assertTrue(gain > 4);
+		assertEquals(travel * gain, fastRecorder.totalDx, travel * gain * 0.05f);
+		assertEquals(0, fastRecorder.totalDy);
+	}
+
+	@Test
+	public void acceleratedMotionKeepsItsDirection() {
+		float[][] trace = line(501, 3, 1);
+		Recorder recorder = new Recorder();
+		replay(engine(recorder, AccelerationCurve.DEFAULT), recorder, trace[0], trace[1]);
+
+		assertTrue(recorder.totalDx > 0);
+		for (int[] command : recorder.commands) {
+			assertEquals(RemoteValues.MOVE_MOUSE_BY, command[0]);
+			assertTrue(command[1] >= 0 && command[2] >= 0);
+		}
+	}
+
+	@Test
+	public void tapClicksAfterTheCursorHasSettled() {
+		// A tap that wiggles 4.8 px, inside the tap slop, with prediction on
+		float[] xs = { 100, 101.6f, 103.2f, 104.8f, 104.8f };
+		float[] ys = { 200, 200, 200, 200, 200 };
+		Recorder predicted = new Recorder();
+		GestureEngine engine = engine(predicted, AccelerationCurve.DEFAULT);
+		engine.setPredictionHorizon(40);
+		replay(engine, predicted, xs, ys);
+		Recorder plain = new Recorder();
+		replay(engine(plain, AccelerationCurve.DEFAULT), plain, xs, ys);
+
+		int last = predicted.commands.size() - 1;
+		assertEquals(RemoteValues.MOUSE_LEFT, predicted.commands.get(last)[0]);
+		for (int i = 0; i < last; i++) {
+			assertEquals(RemoteValues.MOVE_MOUSE_BY, predicted.commands.get(i)[0]);
+		}
+		// The lead sent ahead of the finger is all taken back before the click
+		assertEquals(plain.totalDx, predicted.totalDx, 1);
+		assertEquals(0, predicted.totalDy);
+	}
+
+	@Test
+	public void curveTableMatchesItsFormula() {
+		AccelerationCurve curve = AccelerationCurve.DEFAULT;
+		for (float speed = 0; speed < 12; speed += 0.013f) {
+			double expected = Math.min(curve.getMaxGain(), curve.getSensitivity()
+					* (1 + curve.getAcceleration() * Math.pow(speed, curve.getExponent())));
+			assertEquals("speed " + speed, expected, curve.getGain(speed), expected * 0.01);
+		}
+		assertEquals(curve.getSensitivity(), curve.getGain(-1), 0);
+		assertEquals(curve.getMaxGain(), curve.getGain(1000), 0);
+		assertEquals(1, AccelerationCurve.FLAT.getGain(3), 0);
+	}
+}
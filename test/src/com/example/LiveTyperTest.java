@@ -0,0 +1,140 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Feeds a {@link LiveTyper} successive states of a text box and applies
+ * its edits to a simulated remote text: each state must produce the
+ * smallest delete and insert, backspaces must count whole characters,
+ * and an edit the queue refuses must be sent again by the next update
+ * instead of leaving the remote text out of step.
+ */
+public class LiveTyperTest {
+	/** Applies edits to a remote text, and refuses the ones it is told to. */
+	private static final class Remote implements LiveTyper.Listener {
+		final StringBuilder text = new StringBuilder();
+		final List<String> edits = new ArrayList<String>();
+		int refuse = 0;
+
+		public boolean onDelete(int count) {
+			if (refuse > 0) {
+				refuse--;
+				return false;
+			}
+			edits.add("-" + count);
+			for (int i = 0; i < count; i++) {
+				text.setLength(text.offsetByCodePoints(text.length(), -1));
+			}
+			return true;
+		}
+
+		public boolean onInsert(CharSequence typed, int start, int end) {
+			if (refuse > 0) {
+				refuse--;
+				return false;
+			}
+			edits.add("+" + typed.subSequence(start, end));
+			text.append(typed, start, end);
+			return true;
+		}
+	}
+
+	@Test
+	public void sendsOnlyTheDifference() {
+		Remote remote = new Remote();
+		LiveTyper typer = new LiveTyper(remote);
+		assertTrue(typer.update("h"));
+		assertTrue(typer.update("he"));
+		assertTrue(typer.update("hel"));
+		assertTrue(typer.update("he"));
+		assertTrue(typer.update("help"));
+		assertTrue(typer.update("help"));
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("+h");
+		expected.add("+e");
+		expected.add("+l");
+		expected.add("-1");
+		expected.add("+lp");
+		assertEquals(expected, remote.edits);
+		assertEquals("help", remote.text.toString());
+	}
+
+	@Test
+	public void replacesAnEditInTheMiddleFromThereOn() {
+		Remote remote = new Remote();
+		LiveTyper typer = new LiveTyper(remote);
+		typer.update("the cat sat");
+		typer.update("the bat sat");
+
+		assertEquals("-7", remote.edits.get(1));
+		assertEquals("+bat sat", remote.edits.get(2));
+		assertEquals("the bat sat", remote.text.toString());
+	}
+
+	@Test
+	public void countsSurrogatePairsAsOneBackspace() {
+		Remote remote = new Remote();
+		LiveTyper typer = new LiveTyper(remote);
+		typer.update("ok 😀");
+		// Another emoji sharing the high surrogate replaces the whole pair
+		typer.update("ok 😁");
+
+		assertEquals("-1", remote.edits.get(1));
+		assertEquals("+😁", remote.edits.get(2));
+		assertEquals("ok 😁", remote.text.toString());
+
+		typer.update("ok");
+		assertEquals("-2", remote.edits.get(3));
+		assertEquals("ok", remote.text.toString());
+	}
+
+	@Test
+	public void resendsAnInsertTheQueueRefused() {
+		Remote remote = new Remote();
+		LiveTyper typer = new LiveTyper(remote);
+		typer.update("ab");
+		remote.refuse = 1;
+		assertFalse(typer.update("abc"));
+		assertEquals("ab", typer.getSent().toString());
+
+		assertTrue(typer.update("abcd"));
+		assertEquals("+cd", remote.edits.get(remote.edits.size() - 1));
+		assertEquals("abcd", remote.text.toString());
+	}
+
+	@Test
+	public void typesNothingAfterARefusedDelete() {
+		Remote remote = new Remote();
+		LiveTyper typer = new LiveTyper(remote);
+		typer.update("cart");
+		remote.refuse = 1;
+		// Had "ed" gone out without the delete, the remote would read "carted"
+		assertFalse(typer.update("cared"));
+		assertEquals("cart", remote.text.toString());
+		assertEquals("cart", typer.getSent().toString());
+
+		// Retrying with the same text catches up
+		assertTrue(typer.update("cared"));
+		assertEquals("cared", remote.text.toString());
+	}
+
+	@Test
+	public void resetForgetsWhatWasSent() {
+		Remote remote = new Remote();
+		LiveTyper typer = new LiveTyper(remote);
+		typer.update("sent");
+		typer.reset();
+		typer.update("");
+		typer.update("new");
+		assertEquals("+new", remote.edits.get(remote.edits.size() - 1));
+		assertEquals(2, remote.edits.size());
+	}
+}
@@ -0,0 +1,262 @@
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Compiles macros and plays them with a {@link MacroRunner}: the segments
+ * a macro is split into, a sync that waits for its SYNC_ACK or times out,
+ * cancelling between segments, and a macro's frames keeping their order
+ * with the input queued around them in a {@link CommandQueue}.
+ */
+public class MacroRunnerTest {
+	/** Queues segments and their SYNC as the service's writer does. */
+	private static final class QueueWriter implements MacroRunner.Writer {
+		final CommandQueue queue;
+
+		QueueWriter(CommandQueue queue) {
+			this.queue = queue;
+		}
+
+		public boolean write(byte[] frames, int syncToken) {
+			synchronized (queue) {
+				if (frames.length > 0 && !queue.offerFrames(frames)) {
+					return false;
+				}
+				return syncToken == 0 || queue.offer(RemoteValues.SYNC, syncToken, 0, null);
+			}
+		}
+	}
+
+	/** Keeps every segment handed to it, with its sync token. */
+	private static final class RecordingWriter implements MacroRunner.Writer {
+		final List<byte[]> frames = new ArrayList<byte[]>();
+		final List<Integer> tokens = new ArrayList<Integer>();
+
+		public synchronized boolean write(byte[] frames, int syncToken) {
+			this.frames.add(frames);
+			tokens.add(syncToken);
+			notifyAll();
+			return true;
+		}
+
+		synchronized void awaitWrites(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (frames.size() < count && System.currentTimeMillis() < deadline) {
+				wait(100);
+			}
+			assertEquals(count, frames.size());
+		}
+	}
+
+	/** Counts down once the macro ends. */
+	private static final class Finished implements MacroRunner.Listener {
+		final CountDownLatch latch = new CountDownLatch(1);
+		volatile boolean completed;
+
+		public void onFinished(int run, boolean completed) {
+			this.completed = completed;
+			latch.countDown();
+		}
+	}
+
+	/** Decodes frames, expanding batches, into their commands. */
+	private static List<RemoteCommand> decode(byte[] frames) throws IOException {
+		List<RemoteCommand> commands = new ArrayList<RemoteCommand>();
+		FrameDecoder decoder = new FrameDecoder();
+		decoder.feed(frames, 0, frames.length);
+		while (decoder.next()) {
+			RemoteCommand command = new RemoteCommand();
+			decoder.read(command);
+			commands.add(command);
+		}
+		return commands;
+	}
+
+	/**
+	 * Takes everything ready the way the sender does and decodes it.
+	 * SYNC_ACKs are given to the runner as a receiver would answer them.
+	 */
+	private static List<Integer> send(CommandQueue queue, MacroRunner runner)
+			throws InterruptedException, IOException {
+		CommandEncoder encoder = new CommandEncoder();
+		RemoteCommand command = new RemoteCommand();
+		StringBuilder text = new StringBuilder();
+		while (queue.take(command, text, 0)) {
+			if (command.command == CommandQueue.ENCODED_FRAMES) {
+				encoder.putFrames(queue.getTakenFrames(), 0, command.parameter1);
+			} else {
+				encoder.put(command.command, command.parameter1, command.parameter2, text);
+			}
+		}
+		List<Integer> commands = new ArrayList<Integer>();
+		FrameDecoder decoder = new FrameDecoder();
+		decoder.feed(encoder.array(), 0, encoder.size());
+		RemoteCommand decoded = new RemoteCommand();
+		while (decoder.next()) {
+			decoder.read(decoded);
+			commands.add(decoded.command);
+			if (decoded.command == RemoteValues.SYNC) {
+				runner.onSyncAck(decoded.parameter1);
+			}
+		}
+		return commands;
+	}
+
+	@Test
+	public void framesFollowTheInputQueuedBeforeThem() throws Exception {
+		CommandQueue queue = new CommandQueue();
+		Finished finished = new Finished();
+		MacroRunner runner = new MacroRunner(new QueueWriter(queue), finished);
+		queue.offer(RemoteValues.TYPE, 0, 0, "query");
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+		runner.start(new Macro().key(RemoteValues.NEW_TAB).type("url").key(RemoteValues.ENTER));
+		assertTrue(finished.latch.await(5, TimeUnit.SECONDS));
+		assertTrue(finished.completed);
+		queue.offer(RemoteValues.TAB, 0, 0, null);
+
+		List<Integer> expected = new ArrayList<Integer>();
+		expected.add(RemoteValues.TYPE);
+		expected.add(RemoteValues.ENTER);
+		expected.add(RemoteValues.NEW_TAB);
+		expected.add(RemoteValues.TYPE);
+		expected.add(RemoteValues.ENTER);
+		expected.add(RemoteValues.TAB);
+		assertEquals(expected, send(queue, runner));
+		runner.shutdown();
+	}
+
+	@Test
+	public void compilesIntoSegmentsSplitAtSyncsAndPauses() throws IOException {
+		CompiledMacro macro = new Macro()
+				.key(RemoteValues.NEW_TAB)
+				.sync(500)
+				.delay(150)
+				.type("http://example.com/")
+				.key(RemoteValues.ENTER)
+				.compile();
+
+		assertEquals(3, macro.getSegmentCount());
+		assertTrue(macro.isSync(0));
+		assertEquals(500, macro.getWaitMillis(0));
+		assertEquals(1, decode(macro.getSegment(0)).size());
+		assertEquals(RemoteValues.NEW_TAB, decode(macro.getSegment(0)).get(0).command);
+		// Nothing between the sync and the pause
+		assertEquals(0, macro.getSegment(1).length);
+		assertFalse(macro.isSync(1));
+		assertEquals(150, macro.getWaitMillis(1));
+		List<RemoteCommand> last = decode(macro.getSegment(2));
+		assertEquals(RemoteValues.BATCH, macro.getSegment(2)[1]);
+		assertEquals(2, last.size());
+		assertEquals(RemoteValues.TYPE, last.get(0).command);
+		assertEquals("http://example.com/", last.get(0).string1);
+		assertEquals(RemoteValues.ENTER, last.get(1).command);
+		assertEquals(0, macro.getWaitMillis(2));
+		assertEquals(macro.getSegment(0).length + macro.getSegment(2).length,
+				macro.getEncodedLength());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		macro.writeTo(new DataOutputStream(bytes));
+		CompiledMacro read = CompiledMacro.readFrom(
+				new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(macro.getSegmentCount(), read.getSegmentCount());
+		for (int i = 0; i < macro.getSegmentCount(); i++) {
+			assertArrayEquals(macro.getSegment(i), read.getSegment(i));
+			assertEquals(macro.getWaitMillis(i), read.getWaitMillis(i));
+			assertEquals(macro.isSync(i), read.isSync(i));
+		}
+	}
+
+	@Test
+	public void syncWaitsForItsAck() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		Finished finished = new Finished();
+		MacroRunner runner = new MacroRunner(writer, finished);
+		runner.start(new Macro().key(RemoteValues.NEW_TAB).sync(10000).type("x"));
+		writer.awaitWrites(1);
+		int token = writer.tokens.get(0);
+		assertTrue(token != 0);
+
+		runner.onSyncAck(token + 1);
+		Thread.sleep(50);
+		assertEquals(1, writer.frames.size());
+		runner.onSyncAck(token);
+		assertTrue(finished.latch.await(5, TimeUnit.SECONDS));
+		assertTrue(finished.completed);
+		assertEquals(2, writer.frames.size());
+		assertEquals(0, (int) writer.tokens.get(1));
+		assertEquals(0, runner.getSyncTimeoutCount());
+		runner.shutdown();
+	}
+
+	@Test
+	public void syncGoesOnWhenTheReceiverDoesNotAnswer() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		Finished finished = new Finished();
+		MacroRunner runner = new MacroRunner(writer, finished);
+		runner.start(new Macro().key(RemoteValues.NEW_TAB).sync(20).type("x"));
+
+		assertTrue(finished.latch.await(5, TimeUnit.SECONDS));
+		assertTrue(finished.completed);
+		assertEquals(2, writer.frames.size());
+		assertEquals(1, runner.getSyncTimeoutCount());
+		runner.shutdown();
+	}
+
+	@Test
+	public void cancelStopsBeforeTheNextSegment() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		Finished finished = new Finished();
+		MacroRunner runner = new MacroRunner(writer, finished);
+		runner.start(new Macro().key(RemoteValues.ENTER).delay(10000).key(RemoteValues.TAB));
+		writer.awaitWrites(1);
+		assertTrue(runner.isRunning());
+
+		runner.cancel();
+		assertTrue(finished.latch.await(5, TimeUnit.SECONDS));
+		assertFalse(finished.completed);
+		assertFalse(runner.isRunning());
+		Thread.sleep(50);
+		assertEquals(1, writer.frames.size());
+		runner.shutdown();
+	}
+
+	@Test
+	public void startingAnotherMacroCancelsTheFirst() throws Exception {
+		RecordingWriter writer = new RecordingWriter();
+		final List<String> ends = new ArrayList<String>();
+		final CountDownLatch both = new CountDownLatch(2);
+		MacroRunner runner = new MacroRunner(writer, new MacroRunner.Listener() {
+			public void onFinished(int run, boolean completed) {
+				synchronized (ends) {
+					ends.add(run + (completed ? " done" : " stopped"));
+				}
+				both.countDown();
+			}
+		});
+		int first = runner.start(new Macro().key(RemoteValues.ENTER).delay(10000).key(RemoteValues.TAB));
+		writer.awaitWrites(1);
+		int second = runner.start(new Macro().key(RemoteValues.BACKSPACE));
+
+		assertTrue(both.await(5, TimeUnit.SECONDS));
+		assertEquals(first + " stopped", ends.get(0));
+		assertEquals(second + " done", ends.get(1));
+		writer.awaitWrites(2);
+		assertEquals(RemoteValues.BACKSPACE, decode(writer.frames.get(1)).get(0).command);
+		runner.shutdown();
+	}
+}
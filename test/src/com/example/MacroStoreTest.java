@@ -0,0 +1,97 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Saves and reloads macros, including files written by older versions,
+ * whose scripts have to be compiled again, and a script too long for the
+ * writeUTF those versions used.
+ */
+public class MacroStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static int firstCommand(CompiledMacro macro) throws IOException {
+		FrameDecoder decoder = new FrameDecoder();
+		byte[] segment = macro.getSegment(0);
+		decoder.feed(segment, 0, segment.length);
+		assertTrue(decoder.next());
+		return decoder.command();
+	}
+
+	@Test
+	public void reloadsWhatWasSaved() throws IOException {
+		File file = new File(folder.getRoot(), "macros.dat");
+		MacroStore store = new MacroStore(file);
+		store.put("search", "newtab\nsync\ntype example\nenter");
+		store.put("form", "tab\ntype x");
+
+		MacroStore reloaded = new MacroStore(file);
+		reloaded.load();
+		assertEquals(store.getNames(), reloaded.getNames());
+		assertEquals("tab\ntype x", reloaded.getScript("form"));
+		assertEquals(RemoteValues.NEW_TAB, firstCommand(reloaded.get("search")));
+		assertEquals(RemoteValues.TAB, firstCommand(reloaded.get("form")));
+	}
+
+	/** Writes one macro in the layout of versions 1 and 2. */
+	private static void writeOldFile(File file, int version, String name, String script)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(version);
+			out.writeInt(1);
+			out.writeUTF(name);
+			out.writeUTF(script);
+			Macro.parse(script).compile().writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void keepsTheMeaningOfVersion1TabSteps() throws IOException {
+		File file = new File(folder.getRoot(), "macros.dat");
+		writeOldFile(file, 1, "open", "  TAB \r\nsync\ntype tab\ntab");
+
+		MacroStore store = new MacroStore(file);
+		store.load();
+		assertEquals("  newtab \r\nsync\ntype tab\nnewtab", store.getScript("open"));
+		assertEquals(RemoteValues.NEW_TAB, firstCommand(store.get("open")));
+	}
+
+	@Test
+	public void readsVersion2() throws IOException {
+		File file = new File(folder.getRoot(), "macros.dat");
+		writeOldFile(file, 2, "form", "tab\ntype x");
+
+		MacroStore store = new MacroStore(file);
+		store.load();
+		assertEquals("tab\ntype x", store.getScript("form"));
+		assertEquals(RemoteValues.TAB, firstCommand(store.get("form")));
+	}
+
+	@Test
+	public void keepsScriptsLongerThan64Kilobytes() throws IOException {
+		StringBuilder script = new StringBuilder();
+		while (script.length() <= 70000) {
+			script.append("type héllo wörld\nenter\n");
+		}
+		File file = new File(folder.getRoot(), "macros.dat");
+		new MacroStore(file).put("long", script.toString());
+
+		MacroStore reloaded = new MacroStore(file);
+		reloaded.load();
+		assertEquals(script.toString(), reloaded.getScript("long"));
+	}
+}
@@ -0,0 +1,256 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Round trips every {@link RemoteValues} opcode through the codec and
+ * checks that each frame is much smaller than the Java serialization it
+ * replaced.
+ */
+public class RemoteCommandCodecTest {
+	private static RemoteCommand command(int command, int parameter1, int parameter2,
+			String text) {
+		RemoteCommand rcm = new RemoteCommand();
+		rcm.command = command;
+		rcm.parameter1 = parameter1;
+		rcm.parameter2 = parameter2;
+		rcm.string1 = text;
+		return rcm;
+	}
+
+	// One command for every opcode the codec writes itself, with awkward values
+	private static final RemoteCommand[] COMMANDS = {
+		command(RemoteValues.CHECK_CONNECTION, 7, 0x89abcdef, ""),
+		command(RemoteValues.CHECK_CONNECTION_REPLY, -1, Integer.MIN_VALUE, ""),
+		command(RemoteValues.TEXT_CHUNK_ACK, 3, 200, ""),
+		command(RemoteValues.SYNC_ACK, 300, 0, ""),
+		command(RemoteValues.TYPE, 0, 0, "héllo € 😀"),
+		command(RemoteValues.TYPE, 0, 0, ""),
+		command(RemoteValues.MOUSE_LEFT, 0, 0, ""),
+		command(RemoteValues.MOUSE_RIGHT, 0, 0, ""),
+		command(RemoteValues.MOUSE_SCROLL, -3, 0, ""),
+		command(RemoteValues.MOUSE_SCROLL, Integer.MAX_VALUE, 0, ""),
+		command(RemoteValues.MOUSE_SCROLL_PRECISE, 45, 0, ""),
+		command(RemoteValues.MOVE_MOUSE_BY, 5, -7, ""),
+		command(RemoteValues.MOVE_MOUSE_BY, Integer.MIN_VALUE, Integer.MAX_VALUE, ""),
+		command(RemoteValues.ENTER, 0, 0, ""),
+		command(RemoteValues.TAB, 0, 0, ""),
+		command(RemoteValues.BACKSPACE, 0, 0, ""),
+		command(RemoteValues.DELETE_CHARS, 12, 0, ""),
+		command(RemoteValues.NEW_TAB, 0, 0, ""),
+		command(RemoteValues.TEXT_CHUNK, 2, 1, "chunk of text"),
+		command(RemoteValues.SYNC, 1, 0, ""),
+	};
+
+	private static void assertSame(RemoteCommand expected, RemoteCommand actual) {
+		assertEquals(expected.command, actual.command);
+		assertEquals(expected.parameter1, actual.parameter1);
+		assertEquals(expected.parameter2, actual.parameter2);
+		assertEquals(expected.string1, actual.string1);
+	}
+
+	@Test
+	public void roundTripsEveryOpcode() {
+		for (RemoteCommand rcm : COMMANDS) {
+			byte[] bytes = rcm.getByteArray();
+			assertEquals(RemoteCommandCodec.encodedLength(rcm), bytes.length);
+			assertSame(rcm, RemoteCommand.getRemoteCommand(bytes));
+		}
+	}
+
+	@Test
+	public void decodesFramesFedOneByteAtATime() throws IOException {
+		CommandEncoder encoder = new CommandEncoder();
+		for (RemoteCommand rcm : COMMANDS) {
+			encoder.put(rcm);
+		}
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		encoder.writeTo(stream);
+		byte[] bytes = stream.toByteArray();
+
+		FrameDecoder decoder = new FrameDecoder(4);
+		RemoteCommand decoded = new RemoteCommand();
+		int next = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			decoder.feed(bytes, i, 1);
+			while (decoder.next()) {
+				decoder.read(decoded);
+				assertSame(COMMANDS[next++], decoded);
+			}
+		}
+		assertEquals(COMMANDS.length, next);
+		assertEquals(0, decoder.buffered());
+	}
+
+	@Test
+	public void expandsBatchesAndCompressedChunks() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			text.append("repetitive text ");
+		}
+		CommandEncoder encoder = new CommandEncoder();
+		encoder.setBatchLimits(512, 0);
+		encoder.setCompressText(true);
+		encoder.putMove(1, 2);
+		encoder.put(RemoteValues.TEXT_CHUNK, 4, 0, text);
+		encoder.putCommand(RemoteValues.ENTER);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		encoder.writeTo(stream);
+		byte[] bytes = stream.toByteArray();
+		assertTrue("compressed", bytes.length < text.length());
+
+		FrameDecoder decoder = new FrameDecoder();
+		decoder.feed(bytes, 0, bytes.length);
+		RemoteCommand decoded = new RemoteCommand();
+		assertTrue(decoder.next());
+		decoder.read(decoded);
+		assertSame(command(RemoteValues.MOVE_MOUSE_BY, 1, 2, ""), decoded);
+		assertTrue(decoder.next());
+		assertEquals(RemoteValues.TEXT_CHUNK_DEFLATE, decoder.command());
+		decoder.read(decoded);
+		assertEquals(text.toString(), decoded.string1);
+		assertEquals(4, decoded.parameter1);
+		assertTrue(decoder.next());
+		decoder.read(decoded);
+		assertEquals(RemoteValues.ENTER, decoded.command);
+		assertFalse(decoder.next());
+	}
+
+	@Test
+	public void skipsFramesWithUnknownOpcodes() throws IOException {
+		for (RemoteCommand rcm : COMMANDS) {
+			assertTrue(RemoteCommandCodec.isKnown(rcm.command));
+		}
+		byte[] enter = command(RemoteValues.ENTER, 0, 0, "").getByteArray();
+		byte[] type = command(RemoteValues.TYPE, 0, 0, "after").getByteArray();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(enter);
+		// Opcode 99 with a three byte payload, as a newer sender might write
+		stream.write(new byte[] { 4, 99, 1, 2, 3 });
+		// A batch holding MOUSE_LEFT and another unknown frame
+		stream.write(new byte[] { 6, RemoteValues.BATCH, 1, RemoteValues.MOUSE_LEFT, 2, 99, 7 });
+		stream.write(type);
+		byte[] bytes = stream.toByteArray();
+
+		FrameDecoder decoder = new FrameDecoder();
+		decoder.feed(bytes, 0, bytes.length);
+		RemoteCommand decoded = new RemoteCommand();
+		assertTrue(decoder.next());
+		assertEquals(RemoteValues.ENTER, decoder.command());
+		assertTrue(decoder.next());
+		assertEquals(RemoteValues.MOUSE_LEFT, decoder.command());
+		assertTrue(decoder.next());
+		decoder.read(decoded);
+		assertEquals("after", decoded.string1);
+		assertFalse(decoder.next());
+		assertEquals(2, decoder.getSkippedCount());
+	}
+
+	@Test
+	public void uses1To4BytePayloadsForSmallMotion() {
+		assertEquals(4, RemoteCommandCodec.encodedLength(RemoteValues.MOVE_MOUSE_BY, 63, -64, null));
+		assertEquals(3, RemoteCommandCodec.encodedLength(RemoteValues.MOUSE_SCROLL, -1, 0, null));
+		assertEquals(2, RemoteCommandCodec.encodedLength(RemoteValues.ENTER, 0, 0, null));
+		// Large moves fall back to the fixed-width form
+		assertEquals(10, RemoteCommandCodec.encodedLength(RemoteValues.MOVE_MOUSE_BY,
+				Integer.MIN_VALUE, Integer.MAX_VALUE, null));
+	}
+
+	@Test
+	public void isFarSmallerThanJavaSerialization() throws IOException {
+		for (RemoteCommand rcm : COMMANDS) {
+			ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(serialized);
+			out.writeObject(rcm);
+			out.close();
+			int encoded = rcm.getByteArray().length;
+			assertTrue(rcm.command + ": " + encoded + " vs " + serialized.size(),
+					encoded * 4 < serialized.size());
+		}
+	}
+
+	@Test
+	public void rejectsMalformedFrames() {
+		byte[] truncated = command(RemoteValues.MOVE_MOUSE_BY, 1000, 1000, "").getByteArray();
+		byte[] shortened = new byte[truncated.length - 1];
+		System.arraycopy(truncated, 0, shortened, 0, shortened.length);
+		try {
+			RemoteCommandCodec.decode(shortened, 0, shortened.length);
+			fail("truncated frame decoded");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			RemoteCommandCodec.decode(new byte[] { 0 }, 0, 1);
+			fail("empty frame decoded");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsProbesWithTrailingBytes() {
+		int[] probes = { RemoteValues.CHECK_CONNECTION, RemoteValues.CHECK_CONNECTION_REPLY };
+		for (int probe : probes) {
+			byte[] frame = command(probe, 1, 2, "").getByteArray();
+			byte[] padded = new byte[frame.length + 1];
+			System.arraycopy(frame, 0, padded, 0, frame.length);
+			// Length prefix now covers one more byte than the two ints
+			padded[0]++;
+			try {
+				RemoteCommandCodec.decode(padded, 0, padded.length);
+				fail(probe + " with a trailing byte decoded");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void acceptsOnlyTheShortestVarint() throws IOException {
+		byte[] canonical = new byte[5];
+		int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1 };
+		for (int value : values) {
+			int length = RemoteCommandCodec.putVarint(canonical, 0, value);
+			assertEquals(value & 0xffffffffL, RemoteCommandCodec.getVarint(canonical, 0, length));
+		}
+
+		byte[][] overlong = {
+			// 0 in two bytes, 1 in three, and 33 bits
+			{ (byte) 0x80, 0 },
+			{ (byte) 0x81, (byte) 0x80, 0 },
+			{ (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x1f },
+		};
+		for (byte[] varint : overlong) {
+			try {
+				RemoteCommandCodec.getVarint(varint, 0, varint.length);
+				fail(Arrays.toString(varint) + " decoded");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+
+		// Read as 2, an over-long length prefix would take its own second
+		// byte for the opcode and lose track of where frames start
+		byte[] frame = { (byte) 0x82, 0, (byte) RemoteValues.ENTER };
+		FrameDecoder decoder = new FrameDecoder();
+		decoder.feed(frame, 0, frame.length);
+		try {
+			decoder.next();
+			fail("over-long length prefix decoded");
+		} catch (StreamCorruptedException e) {
+			// expected
+		}
+	}
+}
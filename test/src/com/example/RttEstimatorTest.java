@@ -0,0 +1,99 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Records round trips in an {@link RttEstimator} and checks its summaries:
+ * the minimum, mean and 99th percentile cover only the samples still in
+ * the window, a rare spike shows in the percentile but barely moves the
+ * mean, and an estimator with nothing recorded reports -1.
+ */
+public class RttEstimatorTest {
+	@Test
+	public void reportsNothingBeforeTheFirstSample() {
+		RttEstimator rtt = new RttEstimator();
+		assertEquals(0, rtt.getCount());
+		assertEquals(-1, rtt.getMin());
+		assertEquals(-1, rtt.getMean());
+		assertEquals(-1, rtt.getPercentile(99));
+	}
+
+	@Test
+	public void summarizesTheSamples() {
+		RttEstimator rtt = new RttEstimator();
+		for (int i = 1; i <= 100; i++) {
+			rtt.addSample(i * 1000);
+		}
+		assertEquals(100, rtt.getCount());
+		assertEquals(1000, rtt.getMin());
+		assertEquals(50500, rtt.getMean());
+		assertEquals(50000, rtt.getPercentile(50));
+		assertEquals(99000, rtt.getPercentile(99));
+		assertEquals(100000, rtt.getPercentile(100));
+		assertEquals(1000, rtt.getPercentile(0));
+	}
+
+	@Test
+	public void aRareSpikeShowsInTheTailButNotTheMean() {
+		RttEstimator rtt = new RttEstimator();
+		// One slow round trip in a full window of quick ones, as when a
+		// Bluetooth link retransmits
+		for (int i = 0; i < RttEstimator.DEFAULT_WINDOW - 2; i++) {
+			rtt.addSample(8000);
+		}
+		rtt.addSample(250000);
+		rtt.addSample(7000);
+		assertEquals(7000, rtt.getMin());
+		assertEquals(250000, rtt.getPercentile(100));
+		// Nearest rank 127 of 128 is still a quick one; two spikes reach it
+		assertEquals(8000, rtt.getPercentile(99));
+		assertEquals((126 * 8000 + 250000 + 7000) / 128, rtt.getMean());
+		rtt.addSample(240000);
+		assertEquals(240000, rtt.getPercentile(99));
+	}
+
+	@Test
+	public void forgetsSamplesThatLeaveTheWindow() {
+		RttEstimator rtt = new RttEstimator(4);
+		rtt.addSample(100);
+		rtt.addSample(900);
+		rtt.addSample(500);
+		rtt.addSample(700);
+		assertEquals(100, rtt.getMin());
+		assertEquals(550, rtt.getMean());
+
+		// Pushes out the 100
+		rtt.addSample(300);
+		assertEquals(4, rtt.getCount());
+		assertEquals(300, rtt.getMin());
+		assertEquals(600, rtt.getMean());
+		assertEquals(900, rtt.getPercentile(99));
+
+		// And then the 900
+		rtt.addSample(300);
+		assertEquals(700, rtt.getPercentile(99));
+		assertEquals(450, rtt.getMean());
+	}
+
+	@Test
+	public void resetStartsOver() {
+		RttEstimator rtt = new RttEstimator(4);
+		for (int i = 0; i < 6; i++) {
+			rtt.addSample(1000);
+		}
+		rtt.reset();
+		assertEquals(-1, rtt.getMean());
+		rtt.addSample(2000);
+		assertEquals(1, rtt.getCount());
+		assertEquals(2000, rtt.getMin());
+		assertEquals(2000, rtt.getMean());
+		assertEquals(2000, rtt.getPercentile(99));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnEmptyWindow() {
+		new RttEstimator(0);
+	}
+}
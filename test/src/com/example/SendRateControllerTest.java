@@ -0,0 +1,116 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Feeds a {@link SendRateController} the writes of links that keep up and
+ * links that fall behind: a backlog must back the interval off by a
+ * quarter per write up to the maximum, a drained queue must bring it down
+ * a millisecond at a time, and slow writes must set a floor above the
+ * minimum. Motion sends must be spaced by whatever the interval is.
+ */
+public class SendRateControllerTest {
+	// A write that barely registers, so only the backlog moves the interval
+	private static final long FAST_WRITE = 1000000; // ns
+
+	@Test
+	public void backsOffByAQuarterWhileABacklogRemains() {
+		SendRateController controller = new SendRateController();
+		assertEquals(SendRateController.DEFAULT_MIN_INTERVAL, controller.getInterval());
+		long[] expected = { 10, 12, 15, 18, 22, 27, 33, 41, 50, 50 };
+		for (int i = 0; i < expected.length; i++) {
+			controller.onWriteComplete(FAST_WRITE, 5);
+			assertEquals("write " + i, expected[i], controller.getInterval());
+		}
+		assertEquals(20f, controller.getRate(), 0f);
+	}
+
+	@Test
+	public void creepsBackDownOnceTheQueueDrains() {
+		SendRateController controller = new SendRateController();
+		while (controller.getInterval() < SendRateController.DEFAULT_MAX_INTERVAL) {
+			controller.onWriteComplete(FAST_WRITE, 3);
+		}
+		for (int i = 1; i <= 10; i++) {
+			controller.onWriteComplete(FAST_WRITE, 0);
+			assertEquals(SendRateController.DEFAULT_MAX_INTERVAL - i, controller.getInterval());
+		}
+		for (int i = 0; i < 100; i++) {
+			controller.onWriteComplete(FAST_WRITE, 0);
+		}
+		assertEquals(SendRateController.DEFAULT_MIN_INTERVAL, controller.getInterval());
+		assertEquals(125f, controller.getRate(), 0f);
+	}
+
+	@Test
+	public void slowWritesKeepTheIntervalAboveTheirAverage() {
+		SendRateController controller = new SendRateController();
+		controller.onWriteComplete(20000000, 0);
+		// Half as long again as the write
+		assertEquals(30, controller.getInterval());
+		assertEquals(20f, controller.getAverageWriteMillis(), 0.001f);
+
+		// One slow write moves the average an eighth of the way
+		controller.onWriteComplete(36000000, 0);
+		assertEquals(22f, controller.getAverageWriteMillis(), 0.001f);
+		assertEquals(33, controller.getInterval());
+
+		// Even a drained queue cannot take it below the floor
+		for (int i = 0; i < 50; i++) {
+			controller.onWriteComplete(22000000, 0);
+		}
+		assertEquals(33, controller.getInterval());
+
+		// Nor can writes slower than the maximum lift it past that
+		controller.onWriteComplete(500000000, 0);
+		assertEquals(SendRateController.DEFAULT_MAX_INTERVAL, controller.getInterval());
+	}
+
+	@Test
+	public void spacesMotionSendsByTheInterval() {
+		SendRateController controller = new SendRateController();
+		assertTrue(controller.shouldSend(1000));
+		assertFalse(controller.shouldSend(1007));
+		assertTrue(controller.shouldSend(1008));
+
+		controller.onWriteComplete(FAST_WRITE, 1);
+		assertEquals(10, controller.getInterval());
+		assertFalse(controller.shouldSend(1017));
+		assertTrue(controller.shouldSend(1018));
+	}
+
+	@Test
+	public void resetForgetsTheLink() {
+		SendRateController controller = new SendRateController();
+		controller.shouldSend(1000);
+		controller.onWriteComplete(40000000, 4);
+		assertEquals(SendRateController.DEFAULT_MAX_INTERVAL, controller.getInterval());
+
+		controller.reset();
+		assertEquals(SendRateController.DEFAULT_MIN_INTERVAL, controller.getInterval());
+		assertEquals(0f, controller.getAverageWriteMillis(), 0f);
+		// The next sample is sent even though it is older than the last send
+		assertTrue(controller.shouldSend(500));
+	}
+
+	@Test
+	public void honoursCustomBounds() {
+		SendRateController controller = new SendRateController(0, 4);
+		assertEquals(Float.POSITIVE_INFINITY, controller.getRate(), 0f);
+		assertTrue(controller.shouldSend(0));
+		assertTrue(controller.shouldSend(0));
+		for (int i = 0; i < 10; i++) {
+			controller.onWriteComplete(FAST_WRITE, 2);
+		}
+		assertEquals(4, controller.getInterval());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAMaximumBelowTheMinimum() {
+		new SendRateController(10, 9);
+	}
+}
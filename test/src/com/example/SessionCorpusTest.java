@@ -0,0 +1,165 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Encodes the sessions in test/resources/sessions and measures what the
+ * compact payloads save in bytes per second: motion and scroll amounts as
+ * zigzag varints instead of fixed four byte ints, and pasted chunks as
+ * TEXT_CHUNK_DEFLATE instead of plain UTF-8. Every frame must also decode
+ * back to the command it was encoded from.
+ */
+public class SessionCorpusTest {
+	/** A session's commands and its length in milliseconds. */
+	private static final class Session {
+		final List<RemoteCommand> commands = new ArrayList<RemoteCommand>();
+		long millis;
+	}
+
+	/** Bytes a session takes to send, in total and for motion and chunks. */
+	private static final class Size {
+		long total;
+		long motion;
+		long chunks;
+	}
+
+	private static Session load(String name) throws Exception {
+		InputStream in = SessionCorpusTest.class.getResourceAsStream("/sessions/" + name);
+		assertNotNull(name, in);
+		Session session = new Session();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				// <millis> <name> <parameter1> <parameter2>[ <text>]
+				String[] fields = line.split(" ", 5);
+				RemoteCommand command = new RemoteCommand();
+				command.command = RemoteValues.class.getField(fields[1]).getInt(null);
+				command.parameter1 = Integer.parseInt(fields[2]);
+				command.parameter2 = Integer.parseInt(fields[3]);
+				command.string1 = fields.length > 4 ? fields[4] : null;
+				session.commands.add(command);
+				session.millis = Math.max(session.millis, Long.parseLong(fields[0]));
+			}
+		} finally {
+			reader.close();
+		}
+		return session;
+	}
+
+	private static boolean isMotion(int command) {
+		return CommandQueue.priorityOf(command) == CommandQueue.PRIORITY_MOTION;
+	}
+
+	/**
+	 * Returns the frame length with fixed-width amounts and uncompressed
+	 * text, as sent before the compact payloads.
+	 */
+	private static int fixedLength(RemoteCommand command) {
+		switch (command.command) {
+		case RemoteValues.MOVE_MOUSE_BY:
+			return 2 + 8;
+		case RemoteValues.MOUSE_SCROLL:
+		case RemoteValues.MOUSE_SCROLL_PRECISE:
+			return 2 + 4;
+		default:
+			return RemoteCommandCodec.encodedLength(command);
+		}
+	}
+
+	private static Size before(Session session) {
+		Size size = new Size();
+		for (RemoteCommand command : session.commands) {
+			int length = fixedLength(command);
+			size.total += length;
+			if (isMotion(command.command)) {
+				size.motion += length;
+			} else if (command.command == RemoteValues.TEXT_CHUNK) {
+				size.chunks += length;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Encodes the session one frame at a time, as the sender does, and
+	 * checks that each frame decodes back to its command.
+	 */
+	private static Size after(Session session) throws Exception {
+		Size size = new Size();
+		CommandEncoder encoder = new CommandEncoder();
+		encoder.setCompressText(true);
+		FrameDecoder decoder = new FrameDecoder();
+		RemoteCommand decoded = new RemoteCommand();
+		try {
+			for (RemoteCommand command : session.commands) {
+				encoder.reset();
+				encoder.put(command);
+				int length = encoder.size();
+				size.total += length;
+				if (isMotion(command.command)) {
+					size.motion += length;
+				} else if (command.command == RemoteValues.TEXT_CHUNK) {
+					size.chunks += length;
+				}
+
+				decoder.feed(encoder.array(), 0, length);
+				assertTrue(decoder.next());
+				decoder.read(decoded);
+				if (decoded.command == RemoteValues.TEXT_CHUNK_DEFLATE) {
+					decoded.command = RemoteValues.TEXT_CHUNK;
+				}
+				assertEquals(command.command, decoded.command);
+				assertEquals(command.parameter1, decoded.parameter1);
+				assertEquals(command.parameter2, decoded.parameter2);
+				if (command.string1 != null) {
+					assertEquals(command.string1, decoded.string1);
+				}
+			}
+		} finally {
+			encoder.release();
+		}
+		return size;
+	}
+
+	private static long perSecond(long bytes, Session session) {
+		return bytes * 1000 / session.millis;
+	}
+
+	@Test
+	public void browsingMotionTakesLessThanHalfTheBytes() throws Exception {
+		Session session = load("browsing.txt");
+		Size before = before(session);
+		Size after = after(session);
+
+		assertTrue(before.motion > before.total / 2);
+		// Mostly one byte per axis, and the odd fling at two
+		assertTrue(after.motion * 100 / before.motion < 50);
+		assertTrue(perSecond(after.total, session) * 100 / perSecond(before.total, session) < 55);
+	}
+
+	@Test
+	public void writingPastesDeflateByOverAQuarter() throws Exception {
+		Session session = load("writing.txt");
+		Size before = before(session);
+		Size after = after(session);
+
+		assertTrue(before.chunks > before.total / 2);
+		// 256 characters of prose leave deflate little to work with
+		assertTrue(after.chunks * 100 / before.chunks < 75);
+		assertTrue(perSecond(after.total, session) * 100 / perSecond(before.total, session) < 80);
+	}
+}
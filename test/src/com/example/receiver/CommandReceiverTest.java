@@ -0,0 +1,255 @@
+package com.example.receiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.example.BulkTextTransfer;
+import com.example.CommandEncoder;
+import com.example.CommandQueue;
+import com.example.FrameDecoder;
+import com.example.Macro;
+import com.example.MacroRunner;
+import com.example.RemoteCommand;
+import com.example.RemoteValues;
+import com.example.transport.LoopbackTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the whole pipeline in memory: commands offered to a
+ * {@link CommandQueue} are encoded by a sender loop like the service's,
+ * cross a {@link LoopbackTransport} to a {@link CommandReceiver} and end
+ * up in a {@link RecordingSink}, while the receiver's acknowledgements
+ * travel back to drive bulk text transfers, macro syncs and probes.
+ */
+public class CommandReceiverTest {
+	private static final long TIMEOUT = 5000; // ms
+
+	private final CommandQueue queue = new CommandQueue();
+	private final RecordingSink sink = new RecordingSink();
+	private final LoopbackTransport phone = new LoopbackTransport("test");
+	private final List<String> replies = new ArrayList<String>();
+	private final CountDownLatch transferDone = new CountDownLatch(1);
+	private final CountDownLatch macroDone = new CountDownLatch(1);
+	private volatile boolean transferCompleted;
+	private volatile boolean macroCompleted;
+	private volatile boolean sending = true;
+	private BulkTextTransfer bulk;
+	private MacroRunner runner;
+	private CommandReceiver receiver;
+	private Thread receiverThread;
+	private Thread sender;
+	private Thread reader;
+
+	@Before
+	public void setUp() {
+		bulk = new BulkTextTransfer(queue, new BulkTextTransfer.Listener() {
+			public void onProgress(int transfer, int acknowledged, int total) {
+			}
+
+			public void onFinished(int transfer, boolean completed) {
+				transferCompleted = completed;
+				transferDone.countDown();
+			}
+		});
+		runner = new MacroRunner(new MacroRunner.Writer() {
+			public boolean write(byte[] frames, int syncToken) {
+				synchronized (queue) {
+					if (frames.length > 0 && !queue.offerFrames(frames)) {
+						return false;
+					}
+					return syncToken == 0 || queue.offer(RemoteValues.SYNC, syncToken, 0, null);
+				}
+			}
+		}, new MacroRunner.Listener() {
+			public void onFinished(int run, boolean completed) {
+				macroCompleted = completed;
+				macroDone.countDown();
+			}
+		});
+		receiver = new CommandReceiver(phone.getPeer(), sink);
+		receiverThread = new Thread(receiver, "receiver");
+		receiverThread.start();
+		reader = new Thread("reader") {
+			public void run() {
+				read(phone.getInputStream());
+			}
+		};
+		reader.start();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		runner.shutdown();
+		sending = false;
+		queue.close();
+		if (sender != null) {
+			sender.join(TIMEOUT);
+		}
+		phone.close();
+		receiver.stop();
+		receiverThread.join(TIMEOUT);
+		reader.join(TIMEOUT);
+	}
+
+	private void startSender() {
+		sender = new Thread("sender") {
+			public void run() {
+				send(phone.getOutputStream());
+			}
+		};
+		sender.start();
+	}
+
+	/** The service's sender loop: take what is ready, batch it, write it. */
+	private void send(OutputStream out) {
+		CommandEncoder encoder = new CommandEncoder();
+		encoder.setCompressText(true);
+		encoder.setBatchLimits(CommandEncoder.MAX_BATCH_BYTES, 0);
+		RemoteCommand command = new RemoteCommand();
+		StringBuilder text = new StringBuilder();
+		try {
+			while (sending) {
+				if (!queue.take(command, text, 100)) {
+					continue;
+				}
+				do {
+					if (command.command == CommandQueue.ENCODED_FRAMES) {
+						encoder.putFrames(queue.getTakenFrames(), 0, command.parameter1);
+					} else {
+						encoder.put(command.command, command.parameter1, command.parameter2, text);
+					}
+				} while (!encoder.isBatchFull() && queue.take(command, text, 0));
+				encoder.writeTo(out);
+				out.flush();
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (IOException e) {
+			// closed
+		} finally {
+			encoder.release();
+		}
+	}
+
+	/** The service's reader: hands acknowledgements back to the senders. */
+	private void read(InputStream in) {
+		FrameDecoder decoder = new FrameDecoder();
+		RemoteCommand reply = new RemoteCommand();
+		try {
+			while (decoder.fill(in) != -1) {
+				while (decoder.next()) {
+					decoder.read(reply);
+					if (reply.command == RemoteValues.TEXT_CHUNK_ACK) {
+						bulk.onAck(reply.parameter1, reply.parameter2);
+					} else if (reply.command == RemoteValues.SYNC_ACK) {
+						runner.onSyncAck(reply.parameter1);
+					} else {
+						synchronized (replies) {
+							replies.add(reply.command + " " + reply.parameter1 + " " + reply.parameter2);
+							replies.notifyAll();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	private List<String> received() {
+		List<String> described = new ArrayList<String>();
+		for (RemoteCommand command : sink.getCommands()) {
+			described.add(CommandReceiver.describe(command));
+		}
+		return described;
+	}
+
+	@Test
+	public void inputArrivesInOrderWithMotionMerged() throws InterruptedException {
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 3, 4, null);
+		queue.offer(RemoteValues.MOVE_MOUSE_BY, 1, -1, null);
+		queue.offer(RemoteValues.MOUSE_LEFT, 0, 0, null);
+		queue.offer(RemoteValues.TYPE, 0, 0, "héllo");
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+		queue.offer(RemoteValues.MOUSE_SCROLL_PRECISE, -60, 0, null);
+		startSender();
+
+		assertTrue(sink.awaitCount(5, TIMEOUT));
+		List<String> expected = new ArrayList<String>();
+		expected.add("MOVE_MOUSE_BY 4,3");
+		expected.add("MOUSE_LEFT");
+		expected.add("TYPE \"héllo\"");
+		expected.add("ENTER");
+		expected.add("MOUSE_SCROLL_PRECISE -60/" + RemoteValues.SCROLL_UNITS_PER_NOTCH);
+		assertEquals(expected, received());
+	}
+
+	@Test
+	public void pastedTextArrivesWholeBeforeTheKeyAfterIt() throws InterruptedException {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 10 * BulkTextTransfer.CHUNK_LENGTH) {
+			text.append("The quick brown fox jumps over the lazy dog. ");
+		}
+		startSender();
+		assertTrue(bulk.start(text.toString()) > 0);
+		queue.offer(RemoteValues.ENTER, 0, 0, null);
+
+		assertTrue(transferDone.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertTrue(transferCompleted);
+		int chunks = (text.length() + BulkTextTransfer.CHUNK_LENGTH - 1) / BulkTextTransfer.CHUNK_LENGTH;
+		assertTrue(sink.awaitCount(chunks + 1, TIMEOUT));
+		List<RemoteCommand> commands = sink.getCommands();
+		assertEquals(chunks + 1, commands.size());
+		StringBuilder typed = new StringBuilder();
+		for (int i = 0; i < commands.size() - 1; i++) {
+			assertEquals(RemoteValues.TYPE, commands.get(i).command);
+			typed.append(commands.get(i).string1);
+		}
+		assertEquals(text.toString(), typed.toString());
+		assertEquals(RemoteValues.ENTER, commands.get(commands.size() - 1).command);
+	}
+
+	@Test
+	public void macroGoesOnOnceTheReceiverAcksItsSync() throws InterruptedException {
+		startSender();
+		long start = System.nanoTime();
+		runner.start(new Macro().key(RemoteValues.NEW_TAB).sync(TIMEOUT).type("example.com").key(RemoteValues.ENTER));
+
+		assertTrue(macroDone.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertTrue(macroCompleted);
+		// The ack, not the timeout, let it go on
+		assertTrue(System.nanoTime() - start < TIMEOUT * 1000000 / 2);
+		assertEquals(0, runner.getSyncTimeoutCount());
+		assertTrue(sink.awaitCount(4, TIMEOUT));
+		List<String> received = received();
+		assertEquals("NEW_TAB", received.get(0));
+		assertTrue(received.get(1).startsWith("SYNC "));
+		assertEquals("TYPE \"example.com\"", received.get(2));
+		assertEquals("ENTER", received.get(3));
+	}
+
+	@Test
+	public void probesAreEchoed() throws InterruptedException {
+		startSender();
+		queue.offer(RemoteValues.CHECK_CONNECTION, 12345, 678, null);
+		synchronized (replies) {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (replies.isEmpty() && System.currentTimeMillis() < deadline) {
+				replies.wait(100);
+			}
+		}
+		assertEquals(RemoteValues.CHECK_CONNECTION_REPLY + " 12345 678", replies.get(0));
+		assertEquals(0, sink.getCommands().size());
+	}
+}
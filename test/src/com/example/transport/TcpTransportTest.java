@@ -0,0 +1,57 @@
+package com.example.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+/**
+ * Connects a {@link TcpTransport} to a local server socket, and cancels
+ * one before its connect thread has got as far as making the socket.
+ */
+public class TcpTransportTest {
+	@Test
+	public void closeBeforeConnectKeepsItFromConnecting() throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			server.setSoTimeout(200);
+			TcpTransport transport = new TcpTransport("127.0.0.1", server.getLocalPort());
+			transport.close();
+			try {
+				transport.connect();
+				fail("connected after close");
+			} catch (IOException e) {
+				// expected
+			}
+			try {
+				server.accept().close();
+				fail("the server saw a connection");
+			} catch (SocketTimeoutException e) {
+				// expected
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void connectsAndNamesTheServer() throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			int port = server.getLocalPort();
+			TcpTransport transport = new TcpTransport("127.0.0.1", port);
+			transport.connect();
+			server.accept().close();
+			transport.close();
+			assertEquals("TCP 127.0.0.1:" + port, transport.toString());
+			assertEquals("127.0.0.1:" + port, transport.getAddress());
+		} finally {
+			server.close();
+		}
+	}
+}